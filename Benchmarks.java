@@ -0,0 +1,368 @@
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Microbenchmarks for the parts of the relay we keep tuning: encoding and
+ * decoding a Message with each codec, and routing MESSAGEs through a real
+ * Server over loopback. Serialized is measured the way a legacy
+ * connection does it, one object stream for the whole connection.
+ *
+ * Same idea as a JMH run, without needing JMH on the Pi: every benchmark
+ * gets warm up rounds to let the JIT settle, then measured rounds, and
+ * reports ops/s, bytes allocated per op (on HotSpot) and for routing the
+ * latency percentiles. Results feed a sink so the JIT can't throw the
+ * work away.
+ *
+ * Usage: java Benchmarks [codec | route | all] [--rounds <n>] [--round-ms <ms>]
+ *                        [--port <port>] [--pairs <n>] [--window <n>] [--nio <io threads>]
+ * Compile it with the server sources.
+ */
+class Benchmarks {
+
+    static volatile long sink; // everything measured ends up here
+
+    int warmupRounds = 3;
+    int rounds = 5;
+    int roundMillis = 1000;
+    int port = 5599;
+    int pairs = 4; // sender/receiver pairs in the routing benchmark
+    int window = 64; // messages each sender can have on the way at once
+    int ioThreads = 0;
+
+    // A Message like the ones the handsets send
+    static Message message(int payloadChars, int listSize) {
+        Message msg = new Message();
+        msg.messageType = listSize > 0 ? "CLIENT_LIST" : "MESSAGE";
+        msg.senderID = 17;
+        msg.receiverID = 42;
+        StringBuilder text = new StringBuilder(payloadChars);
+        for (int i = 0; i < payloadChars; i++)
+            text.append((char) ('a' + i % 26));
+        msg.message = text.toString();
+        if (listSize > 0) {
+            msg.clientList = new ArrayList<Integer>(listSize);
+            for (int i = 1; i <= listSize; i++)
+                msg.clientList.add(i);
+            msg.listVersion = 12345;
+        }
+        return msg;
+    }
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    /*
+     * Runs op over and over for warm up and then measured rounds, and
+     * prints the best and average rate of the measured rounds.
+     */
+    void measure(String name, Op op) throws Exception {
+        for (int i = 0; i < warmupRounds; i++)
+            round(op);
+        double best = 0;
+        double total = 0;
+        double bytesPerOp = 0;
+        for (int i = 0; i < rounds; i++) {
+            double[] r = round(op);
+            best = Math.max(best, r[0]);
+            total += r[0];
+            bytesPerOp += r[1];
+        }
+        System.out.println(String.format("%-50s %12.0f ops/s (best %.0f) %8.0f B/op",
+                name, total / rounds, best, bytesPerOp / rounds));
+    }
+
+    // One round: {ops per second, bytes allocated per op}
+    double[] round(Op op) throws Exception {
+        long allocated = allocatedBytes();
+        long ops = 0;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(roundMillis);
+        long now;
+        do {
+            // Check the clock every 256 ops so it doesn't dominate tiny ops
+            for (int i = 0; i < 256; i++)
+                op.run();
+            ops += 256;
+        } while ((now = System.nanoTime()) < end);
+        double seconds = (now - start) / 1e9;
+        long bytes = allocatedBytes() - allocated;
+        return new double[] {ops / seconds, allocated < 0 ? -1 : (double) bytes / ops};
+    }
+
+    // Bytes this thread has allocated so far, -1 if the JVM can't tell us
+    static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    // Bytes allocated by every thread in the JVM so far, -1 if unknown
+    static long allocatedBytesAllThreads() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        long[] bytes = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds());
+        long total = 0;
+        for (long b : bytes)
+            total += Math.max(0, b);
+        return total;
+    }
+
+    void codecBenchmarks() throws Exception {
+        System.out.println("== Codecs");
+        MessageCodec[] codecs = {MessageCodec.SERIALIZED, MessageCodec.BINARY};
+        int[][] shapes = { // payload chars, client list size
+            {0, 0}, {40, 0}, {200, 0}, {1000, 0}, {40, 10}, {40, 100}, {40, 1000}
+        };
+        for (int[] shape : shapes) {
+            final Message msg = message(shape[0], shape[1]);
+            for (final MessageCodec codec : codecs) {
+                String name = codecName(codec) + " " + shape[0] + " chars, list " + shape[1];
+                if (codec == MessageCodec.SERIALIZED) {
+                    legacyStream(name, shape[0], shape[1]);
+                    continue;
+                }
+                final byte[] encoded = codec.encode(msg);
+                String label = name + " (" + encoded.length + " B)";
+                measure("encode " + label, () -> sink += codec.encode(msg).length);
+                measure("decode " + label, () -> sink += codec.decode(encoded, 0, encoded.length).senderID);
+            }
+        }
+    }
+
+    /*
+     * Serialized as a legacy connection sends it: one ObjectOutputStream for
+     * every message, reset every LEGACY_RESET_EVERY like ClientThread does,
+     * and one ObjectInputStream reading them back. Not MessageCodec.SERIALIZED,
+     * which pays for a new stream and its header every time. The messages
+     * are all different objects, as they would be, so none of them goes as
+     * a back reference to another.
+     */
+    void legacyStream(String name, int payloadChars, int listSize) throws Exception {
+        final Message[] messages = new Message[MessageFrames.LEGACY_RESET_EVERY];
+        for (int i = 0; i < messages.length; i++)
+            messages[i] = message(payloadChars, listSize);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.flush();
+        int header = bytes.size();
+        for (Message msg : messages)
+            out.writeObject(msg);
+        out.reset();
+        out.flush();
+        byte[] first = bytes.toByteArray();
+        byte[] cycle = Arrays.copyOfRange(first, header, first.length); // every message from one reset to the next
+
+        String label = name + " (" + cycle.length / messages.length + " B)";
+        final int[] next = {0};
+        measure("encode " + label, () -> {
+            bytes.reset();
+            if (next[0] == messages.length) {
+                next[0] = 0;
+                out.reset();
+            }
+            out.writeObject(messages[next[0]++]);
+            out.flush();
+            sink += bytes.size();
+        });
+        final ObjectInputStream in = new ObjectInputStream(new Replay(Arrays.copyOf(first, header), cycle));
+        measure("decode " + label, () -> sink += ((Message) in.readObject()).senderID);
+    }
+
+    // The stream header, then cycle over and over: a connection that never runs dry
+    static class Replay extends InputStream {
+        private final byte[] header;
+        private final byte[] cycle;
+        private byte[] current;
+        private int at = 0;
+
+        Replay(byte[] header, byte[] cycle) {
+            this.header = header;
+            this.cycle = cycle;
+            this.current = header.length > 0 ? header : cycle;
+        }
+
+        public int read() {
+            int b = current[at++] & 0xFF;
+            next();
+            return b;
+        }
+
+        public int read(byte[] buf, int offset, int length) {
+            int n = Math.min(length, current.length - at);
+            System.arraycopy(current, at, buf, offset, n);
+            at += n;
+            next();
+            return n;
+        }
+
+        private void next() {
+            if (at == current.length) {
+                current = cycle;
+                at = 0;
+            }
+        }
+    }
+
+    static String codecName(MessageCodec codec) {
+        return codec == MessageCodec.BINARY ? "binary" : "serialized";
+    }
+
+    /*
+     * Starts a Server on port and has pairs of framed clients send MESSAGEs
+     * through it: each sender to its own receiver, at most window messages
+     * on the way per pair so queues never overflow. The send time goes in
+     * the message text and the receiver records how long the trip took.
+     * Allocation is for the whole JVM, client threads included.
+     */
+    void routeBenchmark() throws Exception {
+        System.out.println("== Routing over loopback, " + pairs + " pairs, window " + window
+                + (ioThreads > 0 ? ", nio " + ioThreads : ", thread per client"));
+        Log.setLevel(Log.WARN); // not every connect
+        ServerSettings settings = new ServerSettings();
+        settings.port = port;
+        settings.ioThreads = ioThreads;
+        settings.offlineBacklog = 0;
+        settings.pingIntervalSeconds = 0;
+        Server server = new Server(settings);
+        Thread.sleep(200); // let it bind
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLongArray received = new AtomicLongArray(pairs);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        ArrayList<Socket> sockets = new ArrayList<Socket>();
+        for (int p = 0; p < pairs; p++) {
+            final int pair = p;
+            final Semaphore credits = new Semaphore(window);
+            final FramedPeer receiver = new FramedPeer(port);
+            final FramedPeer sender = new FramedPeer(port);
+            sockets.add(receiver.socket);
+            sockets.add(sender.socket);
+
+            threads.add(new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        Message msg = MessageFrames.readFrame(receiver.in, MessageCodec.BINARY);
+                        if (!"MESSAGE".equals(msg.messageType))
+                            continue;
+                        latency.record(System.nanoTime() - Long.parseLong(msg.message));
+                        received.incrementAndGet(pair);
+                        credits.release();
+                    }
+                } catch (IOException e) {
+                }
+            }, "bench-receiver-" + p));
+
+            threads.add(new Thread(() -> {
+                try {
+                    Message msg = new Message();
+                    msg.messageType = "MESSAGE";
+                    msg.senderID = sender.ID;
+                    msg.receiverID = receiver.ID;
+                    while (running.get()) {
+                        if (!credits.tryAcquire(100, TimeUnit.MILLISECONDS))
+                            continue;
+                        msg.message = Long.toString(System.nanoTime());
+                        MessageFrames.writeFrame(sender.out, msg, MessageCodec.BINARY);
+                    }
+                } catch (Exception e) {
+                }
+            }, "bench-sender-" + p));
+        }
+        for (Thread t : threads)
+            t.start();
+
+        for (int r = -warmupRounds; r < rounds; r++) {
+            latency.reset();
+            long before = sum(received);
+            long allocated = allocatedBytesAllThreads();
+            long start = System.nanoTime();
+            Thread.sleep(roundMillis);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long ops = sum(received) - before;
+            long bytes = allocatedBytesAllThreads() - allocated;
+            System.out.println(String.format("%s %10.0f msgs/s %8.0f B/msg %8.1f MB/s allocated  %s",
+                    r < 0 ? "warmup  " : "round " + (r + 1) + " ",
+                    ops / seconds, allocated < 0 ? -1.0 : (double) bytes / Math.max(1, ops),
+                    bytes / seconds / 1e6, latency));
+        }
+
+        running.set(false);
+        for (Socket s : sockets)
+            s.close();
+        for (Thread t : threads)
+            t.join(1000);
+        server.shutdown(1000);
+    }
+
+    static long sum(AtomicLongArray values) {
+        long total = 0;
+        for (int i = 0; i < values.length(); i++)
+            total += values.get(i);
+        return total;
+    }
+
+    // A bare framed BINARY connection: hello, INIT, then whatever the benchmark does
+    static class FramedPeer {
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+        final int ID;
+
+        FramedPeer(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            MessageFrames.handshake(out, in, MessageCodec.BINARY);
+            Message init = MessageFrames.readFrame(in, MessageCodec.BINARY);
+            ID = init.receiverID;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Benchmarks b = new Benchmarks();
+        String which = "all";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--rounds":
+                b.rounds = Integer.parseInt(args[++i]);
+                break;
+            case "--round-ms":
+                b.roundMillis = Integer.parseInt(args[++i]);
+                break;
+            case "--port":
+                b.port = Integer.parseInt(args[++i]);
+                break;
+            case "--pairs":
+                b.pairs = Integer.parseInt(args[++i]);
+                break;
+            case "--window":
+                b.window = Integer.parseInt(args[++i]);
+                break;
+            case "--nio":
+                b.ioThreads = Integer.parseInt(args[++i]);
+                break;
+            default:
+                which = args[i];
+            }
+        }
+        if (which.equals("codec") || which.equals("all"))
+            b.codecBenchmarks();
+        if (which.equals("route") || which.equals("all"))
+            b.routeBenchmark();
+        System.exit(0);
+    }
+}
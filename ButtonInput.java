@@ -0,0 +1,38 @@
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ * Queue of button presses for whichever UI state is running, so the UI
+ * thread sleeps in next() until something happens instead of polling.
+ * Presses come in from a ButtonSource (the GPIO pins or a simulator).
+ */
+class ButtonInput {
+
+  enum Event {
+    UP, DOWN, LEFT, RIGHT, SELECT,
+    REFRESH // nothing was pressed, but what's on screen may be out of date (e.g. a message came in)
+  }
+
+  private final ArrayBlockingQueue<Event> events = new ArrayBlockingQueue<Event>(32);
+
+  // A button was pressed
+  void press(Event button) {
+    events.offer(button); // if the UI is 32 presses behind, dropping more is fine
+  }
+
+  // Wakes the UI up to redraw, without a button press
+  void refresh() {
+    if (!events.contains(Event.REFRESH))
+      events.offer(Event.REFRESH);
+  }
+
+  // Waits for the next press (or refresh)
+  Event next() throws InterruptedException {
+    return events.take();
+  }
+
+  // Throws away anything that was pressed before now
+  void clear() {
+    events.clear();
+  }
+}
@@ -0,0 +1,10 @@
+
+/*
+ * Where the five buttons come from. PiButtons listens to the GPIO pins,
+ * SimulatedButtons is fed presses by a test or a script.
+ */
+interface ButtonSource {
+
+  // Starts sending presses to input
+  void start(ButtonInput input);
+}
@@ -0,0 +1,74 @@
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Named group channels: which client IDs are subscribed to what.
+ *
+ * Every message to a channel looks up its members, while subscribing is
+ * rare, so each channel's members are an int[] that is replaced, never
+ * changed in place. A fan-out reads it once and never locks or boxes.
+ *
+ * Membership goes with the client ID, not the connection, so it lasts
+ * over a reconnect that keeps the ID. It is dropped with the session.
+ */
+class Channels {
+
+    private static final int[] NONE = new int[0];
+
+    private final ConcurrentHashMap<String, int[]> members = new ConcurrentHashMap<String, int[]>();
+
+    // Who is subscribed to channel right now, sorted. Don't change the array.
+    int[] members(String channel) {
+        int[] ids = members.get(channel);
+        return ids == null ? NONE : ids;
+    }
+
+    void subscribe(String channel, int ID) {
+        members.compute(channel, (name, ids) -> {
+            if (ids == null)
+                return new int[] {ID};
+            int at = Arrays.binarySearch(ids, ID);
+            if (at >= 0)
+                return ids;
+            at = -at - 1;
+            int[] more = new int[ids.length + 1];
+            System.arraycopy(ids, 0, more, 0, at);
+            more[at] = ID;
+            System.arraycopy(ids, at, more, at + 1, ids.length - at);
+            return more;
+        });
+    }
+
+    void unsubscribe(String channel, int ID) {
+        members.computeIfPresent(channel, (name, ids) -> without(ids, ID));
+    }
+
+    // ID's session is gone, take it out of everything
+    void leaveAll(int ID) {
+        Iterator<Map.Entry<String, int[]>> it = members.entrySet().iterator();
+        while (it.hasNext()) {
+            String channel = it.next().getKey();
+            members.computeIfPresent(channel, (name, ids) -> without(ids, ID));
+        }
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    // ids minus ID, null (which removes the channel) if that leaves nobody
+    private static int[] without(int[] ids, int ID) {
+        int at = Arrays.binarySearch(ids, ID);
+        if (at < 0)
+            return ids;
+        if (ids.length == 1)
+            return null;
+        int[] fewer = new int[ids.length - 1];
+        System.arraycopy(ids, 0, fewer, 0, at);
+        System.arraycopy(ids, at + 1, fewer, at, ids.length - at - 1);
+        return fewer;
+    }
+}
@@ -2,12 +2,6 @@
 import java.net.*;
 import java.io.*;
 import java.util.*;
-import com.pi4j.wiringpi.Gpio;
-import com.pi4j.wiringpi.Lcd;
-import com.pi4j.io.gpio.*;
-import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
-import com.pi4j.io.gpio.event.GpioPinListenerDigital;
-import com.pi4j.io.gpio.RaspiPin;
 
 /*
 This class is a client that connects to the server.
@@ -23,9 +17,9 @@ States:
 
 public class Client {
 
-  int lcdHandle; // the handle to control calling the lcd
-  private ArrayList<Message> messageList;
-  private ArrayList<Integer> connectedClients;
+  LcdFrame screen; // all drawing goes through this so only changes reach the lcd
+  private final Inbox inbox; // written by the network thread, read by the UI, no locks
+  private volatile ArrayList<Integer> connectedClients; // replaced, never changed in place, once the server sends one
   private final String[] quickReplyList = {"Hello", "Goodbye", "Yes","No", "How are you?","OKAY", "Can't talk", "Call me", "Where are you?", "I love you", "Talk Later",
                                             "Hmm...","Real Talk","Please Explain", "TTYL", "LOL", "LMAO",
                                           }; 
@@ -34,153 +28,113 @@ public class Client {
   public final static int LCD_ROWS = 4;
   public final static int LCD_COLUMNS = 20;
   public final static int LCD_BITS = 4;
-
-  GpioController gpio;
-
-  // provision gpio pin #02 as an input pin with its internal pull down resistor
-  // enabled
-  GpioPinDigitalInput upButton;
-  GpioPinDigitalInput downButton;
-  GpioPinDigitalInput leftButton;
-  GpioPinDigitalInput rightButton;
-  GpioPinDigitalInput selectButton;
+  public final static int INBOX_SIZE = 100; // messages kept, the oldest go first
+  public final static int OFFLINE_SENDS = 50; // messages written while disconnected that we hold on to
+  public final static int RECONNECT_MIN_MS = 500; // first wait after losing the server, doubled each failed try
+  public final static int RECONNECT_MAX_MS = 30000;
+  public final static int PING_INTERVAL_MS = 15000; // ping the server after this long without hearing from it
+  public final static int DEAD_AFTER_MS = 45000; // and give up on it after this long
+  public final static int ACK_TIMEOUT_MS = 5000; // send a MESSAGE again if it isn't ACKed in this long
+  public final static int MAX_SENDS = 5; // and give up after sending it this many times
+  public final static int SEEN_IDS = 256; // received message IDs remembered for spotting duplicates
+
+  // Presses from the buttons (see ButtonSource), the UI states wait on this
+  ButtonInput input = new ButtonInput();
 
   //Object that controlls all networking
   public NetConnection connection;
 
-  Client(int port, String ip) {
-    this.messageList = new ArrayList<Message>();
-    this.connectedClients = new ArrayList<Integer>();
-    this.connection = new NetConnection(port, ip);
-  }
+  // Called on the network thread with every new MESSAGE after it goes in the inbox, if set (e.g. by LoadGenerator)
+  java.util.function.Consumer<Message> onMessage;
 
   /*
-   * Inits the client connection to the server and inits the LCD and buttons
+   * The screens. Each one has a method that runs until the user leaves it
+   * and returns the screen to go to next, and run() just loops calling
+   * them, so changing screens never makes the stack any deeper.
    */
-  private boolean initClient() {
-    /* Connect to the server */
-
+  enum State {
+    MENU,
+    MESSAGES,        // View Messages
+    MESSAGE_OPTIONS, // Delete / reply to selectedMessage
+    CLIENT_LIST,     // Connected Clients List
+    CLIENT_OPTIONS,  // Message selectedClient
+    QUICK_REPLY,     // Reply to selectedClient (Multiple Choice)
+    CUSTOM_REPLY     // Reply to selectedClient (Write your own)
+  }
 
-    /* Set up the LCD Interface */
+  // What the next screen works on, set by the screen before it
+  private long selectedMessage; // an Inbox sequence number
+  private int selectedClient;
 
-    // setup wiringPi
-    if (Gpio.wiringPiSetup() == -1) {
-      System.out.println(" ==>> GPIO SETUP FAILED");
-      return false;
-    }
+  Client(int port, String ip) {
+    this(port, ip, null);
+  }
 
-    // initialize LCD
-    lcdHandle = Lcd.lcdInit(LCD_ROWS, // number of row supported by LCD
-        LCD_COLUMNS, // number of columns supported by LCD
-        LCD_BITS, // number of bits used to communicate to LCD
-        11, // LCD RS pin
-        10, // LCD strobe pin
-        0, // LCD data bit 1
-        1, // LCD data bit 2
-        2, // LCD data bit 3
-        3, // LCD data bit 4
-        0, // LCD data bit 5 (set to 0 if using 4 bit communication)
-        0, // LCD data bit 6 (set to 0 if using 4 bit communication)
-        0, // LCD data bit 7 (set to 0 if using 4 bit communication)
-        0); // LCD data bit 8 (set to 0 if using 4 bit communication)
-
-    // verify initialization
-    if (lcdHandle == -1) {
-      System.out.println(" ==>> LCD INIT FAILED");
-      return false;
-    }
+  // codec = ask the server for framed messages in this format, null for plain serialization
+  Client(int port, String ip, MessageCodec codec) {
+    this(port, ip, codec, INBOX_SIZE, true);
+  }
 
-    this.gpio = GpioFactory.getInstance();
+  // inboxSize = messages kept, evictOldest = when full drop the oldest (true) or the new one (false)
+  Client(int port, String ip, MessageCodec codec, int inboxSize, boolean evictOldest) {
+    this(port, ip, codec, inboxSize, evictOldest, null);
+  }
 
-    // provision gpio pin #02 as an input pin with its internal pull down resistor
-    // enabled
-    this.upButton = gpio.provisionDigitalInputPin(RaspiPin.GPIO_23, PinPullResistance.PULL_DOWN);
-    this.downButton = gpio.provisionDigitalInputPin(RaspiPin.GPIO_22, PinPullResistance.PULL_DOWN);
-    this.leftButton = gpio.provisionDigitalInputPin(RaspiPin.GPIO_26, PinPullResistance.PULL_DOWN);
-    this.rightButton = gpio.provisionDigitalInputPin(RaspiPin.GPIO_27, PinPullResistance.PULL_DOWN);
-    this.selectButton = gpio.provisionDigitalInputPin(RaspiPin.GPIO_21, PinPullResistance.PULL_DOWN);
+  // inboxDir = where received messages are kept between runs (see InboxStore), null for nowhere
+  Client(int port, String ip, MessageCodec codec, int inboxSize, boolean evictOldest, File inboxDir) {
+    InboxStore store = null;
+    if (inboxDir != null) {
+      try {
+        store = new InboxStore(inboxDir);
+      } catch (IOException e) {
+        Log.log(Log.WARN, "Can't open the saved inbox, messages won't outlive this run: {}", e); // carry on without
+      }
+    }
+    this.inbox = new Inbox(inboxSize, evictOldest, store);
+    this.connectedClients = new ArrayList<Integer>();
+    this.connection = new NetConnection(port, ip, codec);
+  }
 
-    // set shutdown state for this input pin
-    upButton.setShutdownOptions(true);
-    downButton.setShutdownOptions(true);
-    leftButton.setShutdownOptions(true);
-    rightButton.setShutdownOptions(true);
-    selectButton.setShutdownOptions(true);
+  // Who else is online, as of the server's last list. Don't change it.
+  ArrayList<Integer> connectedClients() {
+    return connectedClients;
+  }
 
+  /*
+   * Inits the LCD and buttons on the Pi
+   */
+  private boolean initClient() {
+    LcdDisplay lcd = PiLcd.open(LCD_ROWS, LCD_COLUMNS, LCD_BITS);
+    if (lcd == null)
+      return false;
+    initClient(lcd, new PiButtons());
     return true;
   }
 
+  // Same with any display and buttons, e.g. the simulated ones
+  void initClient(LcdDisplay lcd, ButtonSource buttons) {
+    screen = new LcdFrame(lcd);
+    buttons.start(input);
+  }
+
   /*
    * This state displays the menu to the LCD It should have button listeners for
    * going up and down the menu on the LCD
    */
-  private void menuState(boolean state) throws InterruptedException {
-    int cursorXLoc = 0;
+  private State menuState() throws InterruptedException {
     int cursorYLoc = 1;
-    boolean debounceCheck1;
-    boolean debounceCheck2;
-    boolean upButtonState = false;
-    boolean downButtonState = false;
-    boolean selectButtonState = state;
 
-    Lcd.lcdCursor(lcdHandle, 0);
-    Lcd.lcdCursorBlink(lcdHandle, 0);
+    screen.showCursor(false);
 
     // Loop for writing text to LCD
     while (true) {
-
-      // Debounce check if the upButton was pressed
-      debounceCheck1 = upButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = upButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != upButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (cursorYLoc > 1) // Ensure the cursor doesn't go off screen
-              cursorYLoc--;
-          }
-        }
-        upButtonState = debounceCheck1;
-      }
-
-      // Debounce check if the downButton was pressed
-      debounceCheck1 = downButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = downButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != downButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (cursorYLoc < 3) // Ensure the cursor doesn't go off screen
-              cursorYLoc++;
-          }
-        }
-        downButtonState = debounceCheck1;
-      }
-
-      
-      // Debounce check if the downButton was pressed 
-      debounceCheck1 = selectButton.isHigh(); 
-      Thread.sleep(10); 
-      debounceCheck2 = selectButton.isHigh(); 
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference 
-        if (debounceCheck1 != selectButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            Lcd.lcdClear(lcdHandle); 
-            if(cursorYLoc == 1)
-              callNewState("MESSAGES"); 
-            else if (cursorYLoc == 2)
-              clientListState();
-            else if (cursorYLoc == 3)
-              clientListState();
-            break; 
-          } 
-        }
-        selectButtonState = debounceCheck1; 
-      }
-      
+      screen.clear(); // every frame is drawn from scratch, commit() works out what changed
 
       String selectionArrow = ">";
       String readMessage = "(1) Read Messages ";
+      int unread = inbox.unread();
+      if (unread > 0)
+        readMessage = "(1) Messages (" + Math.min(unread, 999) + ") ";
       String sendMessage = "(2) Send Message ";
       String viewClients = "(3) View Clients ";
 
@@ -192,139 +146,59 @@ public class Client {
       else if (cursorYLoc == 3)
         viewClients = selectionArrow.concat(viewClients);
 
-      Lcd.lcdPosition(lcdHandle, 0, 0);
-      Lcd.lcdPuts(lcdHandle, "MENU                ");
+      screen.puts(0, 0, connection.connected ? "MENU                " : "MENU         OFFLINE");
+      screen.puts(0, 1, readMessage);
+      screen.puts(0, 2, sendMessage);
+      screen.puts(0, 3, viewClients);
+      screen.cursor(0, cursorYLoc);
 
-      Lcd.lcdPosition(lcdHandle, 0, 1);
-      Lcd.lcdPuts(lcdHandle, readMessage);
+      screen.commit();
 
-      Lcd.lcdPosition(lcdHandle, 0, 2);
-      Lcd.lcdPuts(lcdHandle, sendMessage);
-
-      Lcd.lcdPosition(lcdHandle, 0, 3);
-      Lcd.lcdPuts(lcdHandle, viewClients);
-
-      Lcd.lcdPosition(lcdHandle, 0, cursorYLoc);
-
-      Thread.sleep(100);
+      // Sleep until a button is pressed
+      switch (input.next()) {
+      case UP:
+        if (cursorYLoc > 1) // Ensure the cursor doesn't go off screen
+          cursorYLoc--;
+        break;
+      case DOWN:
+        if (cursorYLoc < 3) // Ensure the cursor doesn't go off screen
+          cursorYLoc++;
+        break;
+      case SELECT:
+        if(cursorYLoc == 1)
+          return State.MESSAGES;
+        return State.CLIENT_LIST; // (2) and (3) both pick from the client list
+      default:
+        // Anything else just redraws
+      }
     } // End of While loop
   }
 
-  private void clientListState() throws InterruptedException{
+  private State clientListState() throws InterruptedException{
     int cursorYLoc = 1;
     int topArrayLocation = 0; //The top of the screen lists this reply option
     int bottomArrayLocation = 2; //The bottom of the screen lists this reply option
-    boolean debounceCheck1;
-    boolean debounceCheck2;
-    boolean upButtonState = false;
-    boolean downButtonState = false;
-    boolean leftButtonState = false;
-    boolean selectButtonState = true; //this is true because we enter this state by the selectButton being HIGH
 
-    Lcd.lcdCursor(lcdHandle, 0);
-    Lcd.lcdCursorBlink(lcdHandle, 0);
+    screen.showCursor(false);
 
     while (true) {
+      screen.clear();
 
-      //Left button sends us back to the menu
-      debounceCheck1 = leftButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = leftButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != leftButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            menuState(true);
-            Lcd.lcdClear(lcdHandle); 
-            break;
-          }
-        }
-        leftButtonState = debounceCheck1;
-      }
-
-      // Debounce check if the upButton was pressed
-      debounceCheck1 = upButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = upButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != upButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (cursorYLoc > 1 ){ // Ensure the cursor doesn't go off screen
-              cursorYLoc--;
-            }
-            else if (cursorYLoc == 1 && topArrayLocation > 0){ //Moves the displays options up
-              bottomArrayLocation--;
-              topArrayLocation--;
-            }   
-            Lcd.lcdClear(lcdHandle);
-          }
-        }
-        upButtonState = debounceCheck1;
-      }
-
-      // Debounce check if the downButton was pressed
-      debounceCheck1 = downButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = downButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != downButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (cursorYLoc < 3){ // Ensure the cursor doesn't go off screen
-              cursorYLoc++;
-            }
-            else if (cursorYLoc == 3 && bottomArrayLocation < (connectedClients.size() - 1)){ //Moves the displayed options down
-              bottomArrayLocation++;
-              topArrayLocation++;
-            }
-            Lcd.lcdClear(lcdHandle);
-          }
-        }
-        downButtonState = debounceCheck1;
-      }
-
-      
-      // Debounce check if the selectButton was pressed 
-      debounceCheck1 = selectButton.isHigh(); 
-      Thread.sleep(10); 
-      debounceCheck2 = selectButton.isHigh(); 
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference 
-        if (debounceCheck1 != selectButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            Lcd.lcdClear(lcdHandle); 
-            //TODO Add in options for custom message
-            if(cursorYLoc == 1){ //Pick our client based on the y cursors location
-              if(connectedClients.size() > 0){
-                clientOptions(connectedClients.get(topArrayLocation));
-              }
-            }
-            else if (cursorYLoc == 2){
-              if(connectedClients.size() > 1){
-                clientOptions(connectedClients.get(topArrayLocation + 1));
-              }
-            }
-            else if (cursorYLoc == 3){
-              if(connectedClients.size() > 2){
-                clientOptions(connectedClients.get(bottomArrayLocation));
-              }
-            }
-            break; 
-          } 
-        }
-        selectButtonState = debounceCheck1; 
-      }
+      ArrayList<Integer> clients = connectedClients; // the network thread may swap in a new list at any time
 
       String selectionArrow = ">";
       String topMessage = "--empty--";
       String middleMessage = "--empty--";
       String thirdMessage = "--empty--";
 
-      if(connectedClients.size() > 0){
-        topMessage = "(" + Integer.toString(topArrayLocation + 1) + ") client #" + Integer.toString(connectedClients.get(topArrayLocation));
+      if(clients.size() > topArrayLocation){
+        topMessage = "(" + Integer.toString(topArrayLocation + 1) + ") client #" + Integer.toString(clients.get(topArrayLocation));
       }
-      if(connectedClients.size() > 1){
-        middleMessage = "(" + Integer.toString(topArrayLocation + 2) + ") client #" + Integer.toString(connectedClients.get(topArrayLocation + 1));
+      if(clients.size() > topArrayLocation + 1){
+        middleMessage = "(" + Integer.toString(topArrayLocation + 2) + ") client #" + Integer.toString(clients.get(topArrayLocation + 1));
       }
-      if(connectedClients.size() > 2){
-        thirdMessage = "(" + Integer.toString(bottomArrayLocation + 1) + ") client #" + Integer.toString(connectedClients.get(bottomArrayLocation));
+      if(clients.size() > bottomArrayLocation){
+        thirdMessage = "(" + Integer.toString(bottomArrayLocation + 1) + ") client #" + Integer.toString(clients.get(bottomArrayLocation));
       }
 
       // This block of code formats our current selection
@@ -335,21 +209,47 @@ public class Client {
       else if (cursorYLoc == 3)
         thirdMessage = selectionArrow.concat(thirdMessage);
 
-      Lcd.lcdPosition(lcdHandle, 0, 0);
-      Lcd.lcdPuts(lcdHandle, "Clients:");
-
-      Lcd.lcdPosition(lcdHandle, 0, 1);
-      Lcd.lcdPuts(lcdHandle, topMessage);
-
-      Lcd.lcdPosition(lcdHandle, 0, 2);
-      Lcd.lcdPuts(lcdHandle, middleMessage);
-
-      Lcd.lcdPosition(lcdHandle, 0, 3);
-      Lcd.lcdPuts(lcdHandle, thirdMessage);
-
-      Lcd.lcdPosition(lcdHandle, 0, cursorYLoc);
-
-      Thread.sleep(100);
+      screen.puts(0, 0, "Clients:");
+      screen.puts(0, 1, topMessage);
+      screen.puts(0, 2, middleMessage);
+      screen.puts(0, 3, thirdMessage);
+      screen.cursor(0, cursorYLoc);
+
+      screen.commit();
+
+      // Sleep until a button is pressed or the client list changes
+      switch (input.next()) {
+      case LEFT: //Left button sends us back to the menu
+        return State.MENU;
+      case UP:
+        if (cursorYLoc > 1 ){ // Ensure the cursor doesn't go off screen
+          cursorYLoc--;
+        }
+        else if (cursorYLoc == 1 && topArrayLocation > 0){ //Moves the displays options up
+          bottomArrayLocation--;
+          topArrayLocation--;
+        }   
+        break;
+      case DOWN:
+        if (cursorYLoc < 3){ // Ensure the cursor doesn't go off screen
+          cursorYLoc++;
+        }
+        else if (cursorYLoc == 3 && bottomArrayLocation < (clients.size() - 1)){ //Moves the displayed options down
+          bottomArrayLocation++;
+          topArrayLocation++;
+        }
+        break;
+      case SELECT:
+        //TODO Add in options for custom message
+        int picked = topArrayLocation + cursorYLoc - 1; //Pick our client based on the y cursors location
+        if(clients.size() > picked){
+          selectedClient = clients.get(picked);
+          return State.CLIENT_OPTIONS;
+        }
+        break; // nobody on that line
+      default:
+        // The list changed, just redraw
+      }
     } // End of While loop
   }
 
@@ -357,105 +257,66 @@ public class Client {
    * This state displays the messages to the LCD. The user can use the buttons to
    * flip through their received messages
    */
-  private void messagesState() throws InterruptedException {
-    boolean upButtonState = false;
-    boolean downButtonState = false;
-    boolean leftButtonState = false;
-    boolean selectButtonState = true; //this is true because we enter this state by the selectButton being HIGH
-    boolean debounceCheck1;
-    boolean debounceCheck2;
-    int currentMessageIndex = 0;
-
-    Lcd.lcdCursor(lcdHandle, 0);
-    Lcd.lcdCursorBlink(lcdHandle, 0);
+  private State messagesState() throws InterruptedException {
+    long current = inbox.newest(); // sequence number of the message on screen, -1 for none
+
+    screen.showCursor(false);
 
     // Loop for printing to the LCD
     while (true) {
-
-      //Left button sends us back to the menu
-      debounceCheck1 = leftButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = leftButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != leftButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            Lcd.lcdClear(lcdHandle); 
-            menuState(true);
-            break;
-          }
-        }
-        leftButtonState = debounceCheck1;
+      screen.clear();
+      inbox.markViewed();
+
+      // The one we were on may have been pushed out by newer ones
+      Message msg = current < 0 ? null : inbox.get(current);
+      if (msg == null) {
+        current = inbox.newest();
+        msg = current < 0 ? null : inbox.get(current);
       }
 
-      // Debounce check if the upButton was pressed
-      debounceCheck1 = upButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = upButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != upButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (currentMessageIndex < messageList.size() - 1){
-              currentMessageIndex++;
-              Lcd.lcdClear(lcdHandle);
-            }
-          }
-        }
-        upButtonState = debounceCheck1;
-      }
-      // Left button displays the previous message
-      debounceCheck1 = downButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = downButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != downButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (currentMessageIndex > 0)
-              currentMessageIndex--;
-              Lcd.lcdClear(lcdHandle);
-          }
-        }
-        downButtonState = debounceCheck1;
-      }
-
-      if (messageList.size() == 0) { // If we have no messages display that
-        Lcd.lcdPosition(lcdHandle, 0, 1);
-        Lcd.lcdPuts(lcdHandle, "         NO         ");
-        Lcd.lcdPosition(lcdHandle, 0, 2);
-        Lcd.lcdPuts(lcdHandle, "      MESSAGES      ");
+      if (msg == null) { // If we have no messages display that
+        screen.puts(0, 1, "         NO         ");
+        screen.puts(0, 2, "      MESSAGES      ");
       } 
       else { //Else display the messges
-        // Debounce check if the select Button was pressed 
-        debounceCheck1 = selectButton.isHigh(); 
-        Thread.sleep(10); 
-        debounceCheck2 = selectButton.isHigh(); 
-        if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference 
-          if (debounceCheck1 != selectButtonState) { // If they're not equal the button's state has changed
-            if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-              Lcd.lcdClear(lcdHandle);
-              messageOptions(currentMessageIndex); //Goes to the options for the selected message
-              break; 
-            } 
-          }
-          selectButtonState = debounceCheck1; 
-        }
-
         // Print the current message's index out of our total received messages
-        String top = String.format("%03d/%03d FROM: #%d", currentMessageIndex + 1, messageList.size(), messageList.get(currentMessageIndex).senderID);
-        Lcd.lcdPosition(lcdHandle, 0, 0);
-        Lcd.lcdPuts(lcdHandle, top);
+        String top = String.format("%03d/%03d FROM: #%d", inbox.position(current), inbox.size(), msg.senderID);
+        screen.puts(0, 0, top);
         // Fetch the current message to be printed
-        String currentMessage = messageList.get(currentMessageIndex).message;
+        String currentMessage = msg.message;
         if (currentMessage.length() > 20) { // If the message is greater than 10 we have to split it
-          Lcd.lcdPosition(lcdHandle, 0, 1);
-          Lcd.lcdPuts(lcdHandle, currentMessage.substring(0, 20)); // Print the first half of the message
-          Lcd.lcdPosition(lcdHandle, 0, 2);
-          Lcd.lcdPuts(lcdHandle, currentMessage.substring(20, currentMessage.length())); // Print the second half of the message
+          screen.puts(0, 1, currentMessage.substring(0, 20)); // Print the first half of the message
+          screen.puts(0, 2, currentMessage.substring(20, currentMessage.length())); // Print the second half of the message
         } else { // Else, print the message
-          Lcd.lcdPosition(lcdHandle, 0, 1);
-          Lcd.lcdPuts(lcdHandle, currentMessage);
+          screen.puts(0, 1, currentMessage);
+        }
+        if (msg.channel != null) // sent to a group rather than just us
+          screen.puts(0, 3, "IN: " + msg.channel);
+      }
+
+      screen.commit();
+
+      // Sleep until a button is pressed or a message comes in
+      switch (input.next()) {
+      case LEFT: //Left button sends us back to the menu
+        return State.MENU;
+      case UP:
+        if (msg != null && inbox.newer(current) >= 0)
+          current = inbox.newer(current);
+        break;
+      case DOWN: // Down button displays the previous message
+        if (msg != null && inbox.older(current) >= 0)
+          current = inbox.older(current);
+        break;
+      case SELECT:
+        if (msg != null) {
+          selectedMessage = current;
+          return State.MESSAGE_OPTIONS; //Goes to the options for the selected message
         }
+        break;
+      default:
+        // A message came in, just redraw
       }
-      Thread.sleep(100);
     } // End of while loop 
   }
 
@@ -463,90 +324,14 @@ public class Client {
   * This state lists the options for a selected message
   * Delete, Reply, Quick Reply
   */
-  private void messageOptions(int messageIndex) throws InterruptedException{
+  private State messageOptions() throws InterruptedException{
     int cursorYLoc = 1;
-    boolean debounceCheck1;
-    boolean debounceCheck2;
-    boolean upButtonState = false;
-    boolean leftButtonState = false;
-    boolean downButtonState = false;
-    boolean selectButtonState = true; //this is true because we enter this state by the selectButton being HIGH
 
-    Lcd.lcdCursor(lcdHandle, 0);
-    Lcd.lcdCursorBlink(lcdHandle, 0);
+    screen.showCursor(false);
 
     // Loop for writing text to LCD
     while (true) {
-
-      //Left button sends us back to the menu
-      debounceCheck1 = leftButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = leftButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != leftButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            menuState(true);
-            Lcd.lcdClear(lcdHandle); 
-            break;
-          }
-        }
-        leftButtonState = debounceCheck1;
-      }
-
-      // Debounce check if the upButton was pressed
-      debounceCheck1 = upButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = upButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != upButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (cursorYLoc > 1) // Ensure the cursor doesn't go off screen
-              cursorYLoc--;
-          }
-        }
-        upButtonState = debounceCheck1;
-      }
-
-      // Debounce check if the downButton was pressed
-      debounceCheck1 = downButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = downButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != downButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (cursorYLoc < 3) // Ensure the cursor doesn't go off screen
-              cursorYLoc++;
-          }
-        }
-        downButtonState = debounceCheck1;
-      }
-
-      
-      // Debounce check if the downButton was pressed 
-      debounceCheck1 = selectButton.isHigh(); 
-      Thread.sleep(10); 
-      debounceCheck2 = selectButton.isHigh(); 
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference 
-        if (debounceCheck1 != selectButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            Lcd.lcdClear(lcdHandle); 
-            //callNewState("MESSAGES"); //TODO add in options for button press on choice
-            if(cursorYLoc == 1){
-              messageList.remove(messageIndex); //delete the selected message
-              callNewState("MESSAGES"); //Go back to the messages page
-            }
-            else if(cursorYLoc == 2){
-              quickReplyState(messageList.get(messageIndex).senderID); //Go to quick reply options
-            }
-            else if (cursorYLoc == 3){
-              customReplyState(messageList.get(messageIndex).senderID);
-            }
-            break; 
-          } 
-        }
-        selectButtonState = debounceCheck1; 
-      }
-      
+      screen.clear();
 
       String selectionArrow = ">";
       String deleteMessage = "(1) Delete ";
@@ -561,21 +346,41 @@ public class Client {
       else if (cursorYLoc == 3)
         longMessage = selectionArrow.concat(longMessage);
 
-      Lcd.lcdPosition(lcdHandle, 0, 0);
-      Lcd.lcdPuts(lcdHandle, "OPTIONS             ");
-
-      Lcd.lcdPosition(lcdHandle, 0, 1);
-      Lcd.lcdPuts(lcdHandle, deleteMessage);
-
-      Lcd.lcdPosition(lcdHandle, 0, 2);
-      Lcd.lcdPuts(lcdHandle, quickMessage);
-
-      Lcd.lcdPosition(lcdHandle, 0, 3);
-      Lcd.lcdPuts(lcdHandle, longMessage);
-
-      Lcd.lcdPosition(lcdHandle, 0, cursorYLoc);
-
-      Thread.sleep(100);
+      screen.puts(0, 0, "OPTIONS             ");
+      screen.puts(0, 1, deleteMessage);
+      screen.puts(0, 2, quickMessage);
+      screen.puts(0, 3, longMessage);
+      screen.cursor(0, cursorYLoc);
+
+      screen.commit();
+
+      // Sleep until a button is pressed
+      switch (input.next()) {
+      case LEFT: //Left button sends us back to the menu
+        return State.MENU;
+      case UP:
+        if (cursorYLoc > 1) // Ensure the cursor doesn't go off screen
+          cursorYLoc--;
+        break;
+      case DOWN:
+        if (cursorYLoc < 3) // Ensure the cursor doesn't go off screen
+          cursorYLoc++;
+        break;
+      case SELECT:
+        if(cursorYLoc == 1){
+          inbox.remove(selectedMessage); //delete the selected message
+          return State.MESSAGES; //Go back to the messages page
+        }
+        Message selected = inbox.get(selectedMessage);
+        if (selected == null) // pushed out of the inbox while we were here
+          return State.MESSAGES;
+        selectedClient = selected.senderID;
+        if(cursorYLoc == 2)
+          return State.QUICK_REPLY; //Go to quick reply options
+        return State.CUSTOM_REPLY;
+      default:
+        // Anything else just redraws
+      }
     } // End of While loop
   }
 
@@ -604,95 +409,21 @@ public class Client {
     connectedClients.add(1);
     connectedClients.add(3);
 
-    messageList.add(msg1);
-    messageList.add(msg2);
-    messageList.add(msg3);
-    messageList.add(msg4);
+    inbox.add(msg1);
+    inbox.add(msg2);
+    inbox.add(msg3);
+    inbox.add(msg4);
   }
 
   //This state will list options for a quick reply
   //Selecting the message will then send it to the server
-  private void quickReplyState(int clientID) throws InterruptedException{
+  private State quickReplyState() throws InterruptedException{
     int cursorYLoc = 1;
     int topArrayLocation = 0; //The top of the screen lists this reply option
     int bottomArrayLocation = 2; //The bottom of the screen lists this reply option
-    boolean debounceCheck1;
-    boolean debounceCheck2;
-    boolean upButtonState = false;
-    boolean downButtonState = false;
-    boolean selectButtonState = true; //this is true because we enter this state by the selectButton being HIGH
 
     while (true) {
-
-      // Debounce check if the upButton was pressed
-      debounceCheck1 = upButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = upButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != upButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (cursorYLoc > 1){ // Ensure the cursor doesn't go off screen
-              cursorYLoc--;
-              Lcd.lcdClear(lcdHandle);
-            }
-            else if (cursorYLoc == 1 && topArrayLocation > 0){ //Moves the displays options up
-              bottomArrayLocation--;
-              topArrayLocation--;
-              Lcd.lcdClear(lcdHandle);
-            }   
-          }
-        }
-        upButtonState = debounceCheck1;
-      }
-
-      // Debounce check if the downButton was pressed
-      debounceCheck1 = downButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = downButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != downButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (cursorYLoc < 3){ // Ensure the cursor doesn't go off screen
-              cursorYLoc++;
-              Lcd.lcdClear(lcdHandle);
-            }
-            else if (cursorYLoc == 3 && bottomArrayLocation < (quickReplyList.length - 1)){ //Moves the displayed options down
-              bottomArrayLocation++;
-              topArrayLocation++;
-              Lcd.lcdClear(lcdHandle);
-            }
-          }
-        }
-        downButtonState = debounceCheck1;
-      }
-
-      
-      // Debounce check if the selectButton was pressed 
-      debounceCheck1 = selectButton.isHigh(); 
-      Thread.sleep(10); 
-      debounceCheck2 = selectButton.isHigh(); 
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference 
-        if (debounceCheck1 != selectButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            Lcd.lcdClear(lcdHandle); 
-            if(cursorYLoc == 1){ //Pick our quick reply based on the y cursors location
-              String messageString = quickReplyList[topArrayLocation]; //Get the string for our quick reply
-              sendMessage(messageString, clientID);
-            }
-            else if (cursorYLoc == 2){
-              String messageString = quickReplyList[topArrayLocation + 1]; //Get the string for our quick reply
-              sendMessage(messageString, clientID);
-            }
-            else if (cursorYLoc == 3){
-              String messageString = quickReplyList[bottomArrayLocation]; //Get the string for our quick reply
-              sendMessage(messageString, clientID);
-            }
-            menuState(true);
-            break; 
-          } 
-        }
-        selectButtonState = debounceCheck1; 
-      }
+      screen.clear();
 
       String selectionArrow = ">";
       String topMessage = "(" + Integer.toString(topArrayLocation + 1) + ")" + quickReplyList[topArrayLocation];
@@ -707,87 +438,62 @@ public class Client {
       else if (cursorYLoc == 3)
         thirdMessage = selectionArrow.concat(thirdMessage);
 
-      Lcd.lcdPosition(lcdHandle, 0, 0);
-      Lcd.lcdPuts(lcdHandle, "Choose a reply");
+      screen.puts(0, 0, "Choose a reply");
+      screen.puts(0, 1, topMessage);
+      screen.puts(0, 2, middleMessage);
+      screen.puts(0, 3, thirdMessage);
+      screen.cursor(0, cursorYLoc);
 
-      Lcd.lcdPosition(lcdHandle, 0, 1);
-      Lcd.lcdPuts(lcdHandle, topMessage);
+      screen.commit();
 
-      Lcd.lcdPosition(lcdHandle, 0, 2);
-      Lcd.lcdPuts(lcdHandle, middleMessage);
-
-      Lcd.lcdPosition(lcdHandle, 0, 3);
-      Lcd.lcdPuts(lcdHandle, thirdMessage);
-
-      Lcd.lcdPosition(lcdHandle, 0, cursorYLoc);
-
-      Thread.sleep(100);
+      // Sleep until a button is pressed
+      switch (input.next()) {
+      case UP:
+        if (cursorYLoc > 1){ // Ensure the cursor doesn't go off screen
+          cursorYLoc--;
+        }
+        else if (cursorYLoc == 1 && topArrayLocation > 0){ //Moves the displays options up
+          bottomArrayLocation--;
+          topArrayLocation--;
+        }   
+        break;
+      case DOWN:
+        if (cursorYLoc < 3){ // Ensure the cursor doesn't go off screen
+          cursorYLoc++;
+        }
+        else if (cursorYLoc == 3 && bottomArrayLocation < (quickReplyList.length - 1)){ //Moves the displayed options down
+          bottomArrayLocation++;
+          topArrayLocation++;
+        }
+        break;
+      case SELECT:
+        if(cursorYLoc == 1){ //Pick our quick reply based on the y cursors location
+          String messageString = quickReplyList[topArrayLocation]; //Get the string for our quick reply
+          sendMessage(messageString, selectedClient);
+        }
+        else if (cursorYLoc == 2){
+          String messageString = quickReplyList[topArrayLocation + 1]; //Get the string for our quick reply
+          sendMessage(messageString, selectedClient);
+        }
+        else if (cursorYLoc == 3){
+          String messageString = quickReplyList[bottomArrayLocation]; //Get the string for our quick reply
+          sendMessage(messageString, selectedClient);
+        }
+        return State.MENU;
+      default:
+        // Anything else just redraws
+      }
     } // End of While loop
   }
 
-  private void clientOptions(int clientID) throws InterruptedException{
+  private State clientOptions() throws InterruptedException{
     int cursorYLoc = 1;
-    boolean debounceCheck1;
-    boolean debounceCheck2;
-    boolean upButtonState = false;
-    boolean downButtonState = false;
-    boolean selectButtonState = true; //this is true because we enter this state by the selectButton being HIGH
 
-    Lcd.lcdCursor(lcdHandle, 0);
-    Lcd.lcdCursorBlink(lcdHandle, 0);
+    screen.showCursor(false);
 
     // Loop for writing text to LCD
     while (true) {
-
-      // Debounce check if the upButton was pressed
-      debounceCheck1 = upButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = upButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != upButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (cursorYLoc > 1) // Ensure the cursor doesn't go off screen
-              cursorYLoc--;
-          }
-        }
-        upButtonState = debounceCheck1;
-      }
-
-      // Debounce check if the downButton was pressed
-      debounceCheck1 = downButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = downButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != downButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if (cursorYLoc < 2) // Ensure the cursor doesn't go off screen
-              cursorYLoc++;
-          }
-        }
-        downButtonState = debounceCheck1;
-      }
-
-      
-      // Debounce check if the downButton was pressed 
-      debounceCheck1 = selectButton.isHigh(); 
-      Thread.sleep(10); 
-      debounceCheck2 = selectButton.isHigh(); 
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference 
-        if (debounceCheck1 != selectButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            Lcd.lcdClear(lcdHandle); 
-            if(cursorYLoc == 1){
-              quickReplyState(clientID);
-            }
-            else if(cursorYLoc == 2){
-              customReplyState(clientID);
-            }
-            break; 
-          } 
-        }
-        selectButtonState = debounceCheck1; 
-      }
-      
+      screen.clear();
 
       String selectionArrow = ">";
       String quickMessage = "(1) Quick Message ";
@@ -799,214 +505,165 @@ public class Client {
       else if (cursorYLoc == 2)
         longMessage = selectionArrow.concat(longMessage);
 
-      Lcd.lcdPosition(lcdHandle, 0, 0);
-      Lcd.lcdPuts(lcdHandle, "OPTIONS             ");
+      screen.puts(0, 0, "OPTIONS             ");
+      screen.puts(0, 1, quickMessage);
+      screen.puts(0, 2, longMessage);
+      screen.cursor(0, cursorYLoc);
 
-      Lcd.lcdPosition(lcdHandle, 0, 1);
-      Lcd.lcdPuts(lcdHandle, quickMessage);
+      screen.commit();
 
-      Lcd.lcdPosition(lcdHandle, 0, 2);
-      Lcd.lcdPuts(lcdHandle, longMessage);
-
-      Lcd.lcdPosition(lcdHandle, 0, cursorYLoc);
-
-      Thread.sleep(100);
+      // Sleep until a button is pressed
+      switch (input.next()) {
+      case UP:
+        if (cursorYLoc > 1) // Ensure the cursor doesn't go off screen
+          cursorYLoc--;
+        break;
+      case DOWN:
+        if (cursorYLoc < 2) // Ensure the cursor doesn't go off screen
+          cursorYLoc++;
+        break;
+      case SELECT:
+        if(cursorYLoc == 1)
+          return State.QUICK_REPLY;
+        return State.CUSTOM_REPLY;
+      default:
+        // Anything else just redraws
+      }
     } // End of While loop
   }
 
   //This is the state for wiriting a custom message
-  private void customReplyState(int clientID) throws InterruptedException {
+  private State customReplyState() throws InterruptedException {
     int cursorXLoc = 0;
     int cursorYLoc = 1;
     int messageIndex = 0; //The currently selected character index in our message
-    boolean debounceCheck1;
-    boolean debounceCheck2;
     boolean selectingCharacter = false; //If true, we are in character selection mode
-    boolean upButtonState = false;
-    boolean downButtonState = false;
-    boolean leftButtonState = false;
-    boolean rightButtonState = false;
-    boolean selectButtonState = true; //this is true because we enter this state by the selectButton being HIGH
 
     //The message is contained by a string of ints, which is used to map out each character
     int[] message = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-    Lcd.lcdPosition(lcdHandle, 0, 1);
-    Lcd.lcdCursor(lcdHandle, 1);
-    Lcd.lcdCursorBlink(lcdHandle, 1);
+    screen.showCursor(true);
 
     while (true){
-      // Debounce check if the upButton was pressed
-      debounceCheck1 = upButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = upButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != upButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if(!selectingCharacter){ //We can only navigate the UI if we are not selecting a character
-              if (cursorYLoc == 2){ // Ensure the cursor doesn't go off screen
-                cursorYLoc--;
-              }
-              else if(cursorYLoc == 3){
-                cursorYLoc = 2;
-                cursorXLoc = 0;
-              }
-            }
-            else { //Go up a position in the character array
-              if(message[messageIndex] == (characters.length - 1)){ //ensure no out of bounds errors
-                message[messageIndex] = 0;
-              }
-              else {
-                message[messageIndex]++;
-              }
-            }
-            Lcd.lcdClear(lcdHandle); 
-          }
-        }
-        upButtonState = debounceCheck1;
-      }
-
-      // Debounce check if the downButton was pressed
-      debounceCheck1 = downButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = downButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != downButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if(!selectingCharacter){ //We can only navigate the UI if we are not selecting a character
-              if (cursorYLoc == 1){ // Ensure the cursor doesn't go off screen
-                cursorYLoc++;
-              }
-              else if(cursorYLoc == 2){
-                cursorYLoc++;
-                cursorXLoc = 0;
-              }
-            }
-            else{ //go down a position in the characters array
-              if(message[messageIndex] == 0){ //ensure no out of bounds errors
-                message[messageIndex] = characters.length - 1;
-              }
-              else {
-                message[messageIndex]--;
-              }
-            }
-            Lcd.lcdClear(lcdHandle); 
-          }
-        }
-        downButtonState = debounceCheck1;
-      }
-
-      // Debounce check if the downButton was pressed 
-      debounceCheck1 = selectButton.isHigh(); 
-      Thread.sleep(10); 
-      debounceCheck2 = selectButton.isHigh(); 
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference 
-        if (debounceCheck1 != selectButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            Lcd.lcdClear(lcdHandle); 
-            if(!selectingCharacter){ //If we are not selecting a character, we enter character selection mode
-              if(cursorYLoc == 1){ //Check if we're currently on our message area
-                selectingCharacter = true; //Boolean to detect character selection mode
-                messageIndex = cursorXLoc;
-              }
-              else if(cursorYLoc == 2){ //Check if we're currently on our message area
-                selectingCharacter = true; //Boolean to detect character selection mode
-                messageIndex = cursorXLoc + 20;
-              }
-              else if(cursorYLoc == 3){ //Code for selecting a bottom option
-                if(cursorXLoc == 0){
-                  callNewState("MENU");
-                  break;
-                }
-                else{
-                  //TODO send message code
-                  System.out.println("Sending custom message");
-                  String msgString = intArrayToString(message);
-                  sendMessage(msgString, clientID);
-                  callNewState("MENU");
-                  break;
-                }
-              }
-            }
-            else{
-              selectingCharacter = false;
-            }
-          } 
-        }
-        selectButtonState = debounceCheck1; 
-      }
-
-      debounceCheck1 = rightButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = rightButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != rightButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if(!selectingCharacter){ //We can only navigate the UI if we are not selecting a character
-              if (cursorXLoc < 19 && cursorYLoc != 3) // Ensure the cursor doesn't go off screen
-                cursorXLoc++;
-              else if(cursorYLoc == 3){
-                if(cursorXLoc == 0){
-                  cursorXLoc = 15;
-                }
-              }
-            }
-            Lcd.lcdClear(lcdHandle); 
-          }
-        }
-        rightButtonState = debounceCheck1;
-      }
-
-      debounceCheck1 = leftButton.isHigh();
-      Thread.sleep(10);
-      debounceCheck2 = leftButton.isHigh();
-      if (debounceCheck1 == debounceCheck2) { // If they're equal we know there was no interference
-        if (debounceCheck1 != leftButtonState) { // If they're not equal the button's state has changed
-          if (debounceCheck1 == true) { // True is the pi4j equiv of Arduino's HIGH
-            if(!selectingCharacter){ //We can only navigate the UI if we are not selecting a character
-              if (cursorXLoc > 0 && cursorYLoc != 3) // Ensure the cursor doesn't go off screen
-                cursorXLoc--;
-              else if(cursorYLoc == 3){
-                if(cursorXLoc == 15){
-                  cursorXLoc = 0;
-                }
-              }
-            }
-            Lcd.lcdClear(lcdHandle); 
-          }
-        }
-        leftButtonState = debounceCheck1;
-      }
+      screen.clear();
 
       String selectionArrow = ">";
       String bottomOptions = " CANCEL         SEND";
       String topHeader = "Message: ";
 
-      Lcd.lcdPosition(lcdHandle, 0, 0);
-      Lcd.lcdPuts(lcdHandle, topHeader);
-
-      Lcd.lcdPosition(lcdHandle, 0, 3);
-      Lcd.lcdPuts(lcdHandle, bottomOptions);
+      screen.puts(0, 0, topHeader);
+      screen.puts(0, 3, bottomOptions);
 
       if(cursorYLoc == 3 && cursorXLoc == 0){
-        Lcd.lcdPosition(lcdHandle, 0, 3);
-        Lcd.lcdPuts(lcdHandle, ">");
+        screen.puts(0, 3, ">");
       }
       else if(cursorYLoc == 3 && cursorXLoc == 15){
-        Lcd.lcdPosition(lcdHandle, 15, 3);
-        Lcd.lcdPuts(lcdHandle, ">");
+        screen.puts(15, 3, ">");
       }
 
       //Print out the current state of the custom message
       for(int i = 0; i < 20; i++){
-        Lcd.lcdPosition(lcdHandle, i, 1);
-        Lcd.lcdPuts(lcdHandle, characters[message[i]]);
+        screen.puts(i, 1, characters[message[i]]);
       }
       for(int i = 0; i < 20; i++){
-        Lcd.lcdPosition(lcdHandle, i, 2);
-        Lcd.lcdPuts(lcdHandle, characters[message[i + 20]]);
+        screen.puts(i, 2, characters[message[i + 20]]);
       }
 
-      Lcd.lcdPosition(lcdHandle, cursorXLoc, cursorYLoc);
+      screen.cursor(cursorXLoc, cursorYLoc);
+
+      screen.commit();
+
+      // Sleep until a button is pressed
+      switch (input.next()) {
+      case UP:
+        if(!selectingCharacter){ //We can only navigate the UI if we are not selecting a character
+          if (cursorYLoc == 2){ // Ensure the cursor doesn't go off screen
+            cursorYLoc--;
+          }
+          else if(cursorYLoc == 3){
+            cursorYLoc = 2;
+            cursorXLoc = 0;
+          }
+        }
+        else { //Go up a position in the character array
+          if(message[messageIndex] == (characters.length - 1)){ //ensure no out of bounds errors
+            message[messageIndex] = 0;
+          }
+          else {
+            message[messageIndex]++;
+          }
+        }
+        break;
+      case DOWN:
+        if(!selectingCharacter){ //We can only navigate the UI if we are not selecting a character
+          if (cursorYLoc == 1){ // Ensure the cursor doesn't go off screen
+            cursorYLoc++;
+          }
+          else if(cursorYLoc == 2){
+            cursorYLoc++;
+            cursorXLoc = 0;
+          }
+        }
+        else{ //go down a position in the characters array
+          if(message[messageIndex] == 0){ //ensure no out of bounds errors
+            message[messageIndex] = characters.length - 1;
+          }
+          else {
+            message[messageIndex]--;
+          }
+        }
+        break;
+      case SELECT:
+        if(!selectingCharacter){ //If we are not selecting a character, we enter character selection mode
+          if(cursorYLoc == 1){ //Check if we're currently on our message area
+            selectingCharacter = true; //Boolean to detect character selection mode
+            messageIndex = cursorXLoc;
+          }
+          else if(cursorYLoc == 2){ //Check if we're currently on our message area
+            selectingCharacter = true; //Boolean to detect character selection mode
+            messageIndex = cursorXLoc + 20;
+          }
+          else if(cursorYLoc == 3){ //Code for selecting a bottom option
+            if(cursorXLoc == 0){
+              return State.MENU;
+            }
+            else{
+              //TODO send message code
+              Log.log(Log.DEBUG, "Sending custom message");
+              String msgString = intArrayToString(message);
+              sendMessage(msgString, selectedClient);
+              return State.MENU;
+            }
+          }
+        }
+        else{
+          selectingCharacter = false;
+        }
+        break;
+      case RIGHT:
+        if(!selectingCharacter){ //We can only navigate the UI if we are not selecting a character
+          if (cursorXLoc < 19 && cursorYLoc != 3) // Ensure the cursor doesn't go off screen
+            cursorXLoc++;
+          else if(cursorYLoc == 3){
+            if(cursorXLoc == 0){
+              cursorXLoc = 15;
+            }
+          }
+        }
+        break;
+      case LEFT:
+        if(!selectingCharacter){ //We can only navigate the UI if we are not selecting a character
+          if (cursorXLoc > 0 && cursorYLoc != 3) // Ensure the cursor doesn't go off screen
+            cursorXLoc--;
+          else if(cursorYLoc == 3){
+            if(cursorXLoc == 15){
+              cursorXLoc = 0;
+            }
+          }
+        }
+        break;
+      default:
+        // Anything else just redraws
+      }
     }
   }
 
@@ -1018,25 +675,39 @@ public class Client {
     return message;
   }
 
-  // Calls a new state based on the string passed.
-  // MENU = Menu
-  // MESSAGES = View Messages
-  // MULT_REPLY = Reply (Multiple Choice)
-  // TYPE_REPLY = Reply (Write your own)
-  // LIST = Connected Clients List
-  private void callNewState(String newState) throws InterruptedException {
-    // TODO add more state cases
-    switch (newState) {
-    case "MENU":
-      menuState(true);
-      break;
-    case "MESSAGES":
-      messagesState();
-      break;
-    default:
-      // menuState();
+  /*
+   * Runs the UI forever, starting at the menu. Every screen returns the
+   * next one instead of calling it, so this is the only loop on the stack.
+   */
+  void run() throws InterruptedException {
+    State state = State.MENU;
+    while (true) {
+
+      switch (state) {
+      case MENU:
+        state = menuState();
+        break;
+      case MESSAGES:
+        state = messagesState();
+        break;
+      case MESSAGE_OPTIONS:
+        state = messageOptions();
+        break;
+      case CLIENT_LIST:
+        state = clientListState();
+        break;
+      case CLIENT_OPTIONS:
+        state = clientOptions();
+        break;
+      case QUICK_REPLY:
+        state = quickReplyState();
+        break;
+      case CUSTOM_REPLY:
+        state = customReplyState();
+        break;
+      }
     }
-  };
+  }
 
   private void sendMessage(String msg, int receiverID) {
     Message newMessage = new Message();
@@ -1047,20 +718,91 @@ public class Client {
     connection.sendMessage(newMessage);
   }
 
+  // A sent MESSAGE waiting for its ACK
+  static class InFlight {
+    final Message msg;
+    long sentAt;
+    int sends = 1;
+
+    InFlight(Message msg, long sentAt) {
+      this.msg = msg;
+      this.sentAt = sentAt;
+    }
+  }
+
   class NetConnection extends Thread{
 	
     Socket socketClient;
     ObjectOutputStream out;
+    int legacyWrites = 0; // Messages written to out, for LEGACY_RESET_EVERY
     ObjectInputStream in;
+    DataOutputStream frameOut; // only used when codec isn't null
+    DataInputStream frameIn;
     String ip;
     int port;
     int ID;
+    long token = 0; // from the INIT, presented on the next connect to keep our ID
+    MessageCodec codec;
+    long listVersion = -1; // version of the client list we have, -1 for none yet
+    boolean awaitingList = false; // asked for a full list and it hasn't come yet
+
+    // Set once the server's INIT arrives, until the connection goes. Sends in between are kept in offline.
+    volatile boolean connected = false;
+    private final Object sendLock = new Object(); // the UI and this thread both send
+    private final ArrayDeque<Message> offline = new ArrayDeque<Message>();
+    private final Random random = new Random();
+    private int backoff = RECONNECT_MIN_MS;
+    private volatile int reconnects = 0;
+    private volatile long downSince = 0; // when we lost the server, 0 while connected (or never connected yet)
+    private volatile long downtime = 0; // ms spent disconnected, not counting now
+    private volatile int droppedSends = 0;
+
+    // Heartbeats, see heartbeatLoop
+    int pingMillis = PING_INTERVAL_MS;
+    int deadMillis = DEAD_AFTER_MS;
+    private volatile long lastHeard = System.currentTimeMillis();
+    private volatile boolean serverPings = false; // the server has sent a PING or PONG, so it answers ours
+
+    /*
+     * Acknowledgements. Every MESSAGE we send gets the next messageID and
+     * stays in inFlight (under sendLock) until the receiver ACKs it, the
+     * server NACKs it or it has been sent MAX_SENDS times. IDs start from the
+     * clock so they keep going up after a restart.
+     */
+    private long nextMessageID = System.currentTimeMillis();
+    private final LongMap<InFlight> inFlight = new LongMap<InFlight>();
+    private volatile int delivered = 0;
+    private volatile int failed = 0;
+    // Last SEEN_IDS messages received (sender and ID), a resend of one of them is only ACKed again
+    private final int[] seenSenders = new int[SEEN_IDS];
+    private final long[] seenIDs = new long[SEEN_IDS];
+    private int seenNext = 0;
+
+    // Group channels we're in, subscribed again whenever we (re)connect. Guarded by sendLock.
+    private final LinkedHashSet<String> channels = new LinkedHashSet<String>();
+
+    private volatile boolean stopped = false; // see shutdown()
     
     NetConnection(int port, String ip){
+      this(port, ip, null);
+    }
+
+    NetConnection(int port, String ip, MessageCodec codec){
       this.port = port;
       this.ip = ip;
+      this.codec = codec;
     }
   
+    // Disconnects for good: no reconnecting, and the threads finish
+    void shutdown() {
+      stopped = true;
+      synchronized(sendLock) {
+        connected = false;
+      }
+      closeSocket();
+      interrupt(); // in case it's waiting to reconnect
+    }
+
     void closeSocket() {
       try {
         socketClient.close();
@@ -1069,92 +811,533 @@ public class Client {
       }
     }
     
-    public void run() {
-      
-      try {
-        socketClient= new Socket(ip, port);
-          out = new ObjectOutputStream(socketClient.getOutputStream());
-          in = new ObjectInputStream(socketClient.getInputStream());
-          socketClient.setTcpNoDelay(true);
-          System.out.println("Connected to server");
+    /*
+     * Opens the socket and does the hello. If we have a token from an
+     * earlier INIT it goes in the hello so the server gives us the same ID
+     * (and anything it kept for us) back. Only framed connections can do
+     * that, plain serialization always gets a new ID.
+     */
+    void connect() throws IOException {
+      socketClient= new Socket(ip, port);
+      if (codec != null) {
+        frameOut = new DataOutputStream(new BufferedOutputStream(socketClient.getOutputStream()));
+        frameIn = new DataInputStream(new BufferedInputStream(socketClient.getInputStream()));
+        codec = MessageFrames.handshake(frameOut, frameIn, codec, token, true, true); // the server may pick a different one
       }
-      catch(Exception e) {
-    	  System.out.println("Can't connect");
-    	  return;
+      else {
+        out = new ObjectOutputStream(socketClient.getOutputStream());
+        in = new ObjectInputStream(socketClient.getInputStream());
       }
-      
-      //Keep accepting new info
-      while(true) {
+      socketClient.setTcpNoDelay(true);
+    }
+
+    /*
+     * Connects, reads until the connection goes, and then does it again
+     * forever. Failed attempts back off exponentially (with jitter, so a
+     * room full of handsets doesn't hammer a restarted server in step);
+     * an INIT resets the backoff.
+     */
+    public void run() {
+      Thread timers = new Thread(this::timerLoop, "net-timers");
+      timers.setDaemon(true);
+      timers.start();
+      while (!stopped) {
         try {
-          //Listen for data from the server
-          Message input = (Message)in.readObject();
-          System.out.println("Message Received");
-          parseMessage(input);
-        } 
-        catch (Exception e) {
-        	System.out.println("Lost connection");
-        	break;
-        }		
-      }//End of while loop
+          listVersion = -1; // the server sends a fresh list when we join
+          awaitingList = false;
+          serverPings = false; // it may not be the same server
+          connect();
+          lastHeard = System.currentTimeMillis();
+          Log.log(Log.INFO, "Connected to server");
+        }
+        catch(Exception e) {
+          Log.log(Log.INFO, "Can't connect");
+          waitToReconnect();
+          continue;
+        }
+
+        //Keep accepting new info
+        while(true) {
+          try {
+            //Listen for data from the server
+            Message input = codec != null ? MessageFrames.readFrame(frameIn, codec) : (Message)in.readObject();
+            lastHeard = System.currentTimeMillis();
+            Log.log(Log.TRACE, "Message Received");
+            parseMessage(input);
+          } 
+          catch (Exception e) {
+            Log.log(Log.INFO, "Lost connection");
+            break;
+          }		
+        }//End of while loop
+
+        disconnected();
+        if (!stopped)
+          waitToReconnect();
+      }
     }//end of run
+
+    // Once a second: heartbeats and resending unacknowledged messages
+    private void timerLoop() {
+      long lastPing = 0;
+      while (!stopped) {
+        try {
+          Thread.sleep(pingMillis > 0 ? Math.min(1000, pingMillis) : 1000);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (!connected)
+          continue;
+        long now = System.currentTimeMillis();
+        resend(now);
+        if (pingMillis > 0 && heartbeat(now, lastPing))
+          lastPing = now;
+      }
+    }
+
+    /*
+     * Pings the server when it has been quiet for pingMillis (returns true
+     * if it did) and drops the connection (so run() reconnects) when it has
+     * been quiet for deadMillis. A server that never answered a PING is
+     * older than heartbeats and is never dropped, it's just idle.
+     */
+    private boolean heartbeat(long now, long lastPing) {
+      long quiet = now - lastHeard;
+      if (serverPings && quiet >= deadMillis) {
+        Log.log(Log.INFO, "Server stopped answering");
+        closeSocket(); // the reader fails and reconnects
+      }
+      else if (quiet >= pingMillis && now - lastPing >= pingMillis) {
+        Message ping = new Message();
+        ping.messageType = "PING";
+        ping.senderID = ID;
+        sendMessage(ping);
+        return true;
+      }
+      return false;
+    }
+
+    // Sends again whatever has waited ACK_TIMEOUT_MS for its ACK
+    private void resend(long now) {
+      long[] givenUp = null;
+      int given = 0;
+      synchronized(sendLock) {
+        if (!connected)
+          return;
+        for (int i = 0; i < inFlight.capacity(); i++) {
+          InFlight f = inFlight.valueAt(i);
+          if (f == null || now - f.sentAt < ACK_TIMEOUT_MS)
+            continue;
+          if (f.sends >= MAX_SENDS) {
+            if (givenUp == null)
+              givenUp = new long[8];
+            else if (given == givenUp.length)
+              givenUp = Arrays.copyOf(givenUp, given * 2);
+            givenUp[given++] = inFlight.keyAt(i);
+            continue;
+          }
+          f.msg.senderID = ID;
+          try {
+            write(f.msg);
+          } catch (IOException e) {
+            connected = false;
+            downSince = now;
+            closeSocket();
+            return;
+          }
+          f.sentAt = now;
+          f.sends++;
+        }
+        for (int i = 0; i < given; i++) {
+          inFlight.remove(givenUp[i]);
+          failed++;
+        }
+      }
+      if (given > 0)
+        Log.log(Log.WARN, "{} message(s) were never acknowledged", given);
+    }
+
+    private void waitToReconnect() {
+      int wait = backoff / 2 + random.nextInt(backoff / 2 + 1);
+      backoff = Math.min(backoff * 2, RECONNECT_MAX_MS);
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+      }
+    }
+
+    private void disconnected() {
+      synchronized(sendLock) {
+        if (connected) {
+          connected = false;
+          downSince = System.currentTimeMillis();
+        }
+      }
+      closeSocket();
+      input.refresh(); // the menu shows we're offline
+    }
     
+    /*
+     * Sends output, or if we aren't connected keeps it (MESSAGEs only, the
+     * rest is redone on reconnect anyway) to go once we are. Only the
+     * newest OFFLINE_SENDS are kept.
+     */
     public void sendMessage(Message output) {
-      try {
+      synchronized(sendLock) {
+        if ("MESSAGE".equals(output.messageType) && output.messageID == 0) {
+          output.messageID = ++nextMessageID;
+          inFlight.put(output.messageID, new InFlight(output, System.currentTimeMillis()));
+        }
+        if (connected) {
+          try {
+            write(output);
+            return;
+          } catch (IOException e) {
+            Log.log(Log.INFO, "Send failed, keeping it for when we reconnect");
+            connected = false;
+            downSince = System.currentTimeMillis();
+            closeSocket(); // the reader sees it and starts reconnecting
+          }
+        }
+        if (!"MESSAGE".equals(output.messageType))
+          return;
+        if (offline.size() == OFFLINE_SENDS) {
+          inFlight.remove(offline.poll().messageID);
+          droppedSends++;
+        }
+        offline.add(output);
+      }
+    }
+
+    private void write(Message output) throws IOException {
+      if (codec != null) {
+        MessageFrames.writeFrame(frameOut, output, codec);
+      } else {
+        if (++legacyWrites % MessageFrames.LEGACY_RESET_EVERY == 0)
+          out.reset();
         out.writeObject(output);
-      } catch (IOException e) {
-        e.printStackTrace();
       }
     }
 
+    // We have an ID, send what was written while we were offline and open up for sending
+    private void online() {
+      synchronized(sendLock) {
+        try {
+          while (!offline.isEmpty()) {
+            Message msg = offline.peek();
+            msg.senderID = ID; // the server may have given us a new one
+            write(msg);
+            offline.poll();
+          }
+        } catch (IOException e) {
+          closeSocket(); // try again on the next connection
+          return;
+        }
+        try {
+          // The server may not know us (new ID, or a restart), so join our groups again
+          for (String channel : channels)
+            write(channelRequest("SUBSCRIBE", channel));
+        } catch (IOException e) {
+          closeSocket();
+          return;
+        }
+        connected = true;
+        // Don't count the time offline against what's waiting for an ACK
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < inFlight.capacity(); i++) {
+          if (inFlight.valueAt(i) != null)
+            inFlight.valueAt(i).sentAt = now;
+        }
+        if (downSince != 0) {
+          downtime += System.currentTimeMillis() - downSince;
+          downSince = 0;
+          reconnects++;
+          Log.log(Log.INFO, "Reconnected ({} reconnects, {}s offline in total)", reconnects, downtime / 1000);
+        }
+      }
+      backoff = RECONNECT_MIN_MS;
+      input.refresh();
+    }
+
+    // How many times we got the server back after losing it
+    int reconnects() {
+      return reconnects;
+    }
+
+    // ms spent disconnected since we first connected, including now if we are
+    long downtimeMillis() {
+      long since = downSince;
+      return downtime + (since == 0 ? 0 : System.currentTimeMillis() - since);
+    }
+
+    // Offline messages thrown away because OFFLINE_SENDS were already waiting
+    int droppedSends() {
+      return droppedSends;
+    }
+
+    // Sent messages the receiver has ACKed
+    int delivered() {
+      return delivered;
+    }
+
+    // Sent messages the server NACKed or that were never ACKed
+    int failed() {
+      return failed;
+    }
+
+    // Sent messages still waiting for their ACK
+    int inFlight() {
+      synchronized(sendLock) {
+        return inFlight.size();
+      }
+    }
+
+    // Joins a group channel, its MESSAGEs come to us from now on
+    void subscribe(String channel) {
+      synchronized(sendLock) {
+        channels.add(channel);
+      }
+      sendMessage(channelRequest("SUBSCRIBE", channel));
+    }
+
+    void unsubscribe(String channel) {
+      synchronized(sendLock) {
+        channels.remove(channel);
+      }
+      sendMessage(channelRequest("UNSUBSCRIBE", channel));
+    }
+
+    // Sends text to everyone else in channel, whether or not we're in it
+    void sendToChannel(String channel, String text) {
+      Message msg = new Message();
+      msg.messageType = "MESSAGE";
+      msg.senderID = ID;
+      msg.message = text;
+      msg.channel = channel;
+      sendMessage(msg);
+    }
+
+    private Message channelRequest(String type, String channel) {
+      Message msg = new Message();
+      msg.messageType = type;
+      msg.senderID = ID;
+      msg.channel = channel;
+      return msg;
+    }
+
+    // Remembers sender's messageID, false if it was already there (a resend)
+    private boolean firstTime(int sender, long messageID) {
+      for (int i = 0; i < SEEN_IDS; i++) {
+        if (seenIDs[i] == messageID && seenSenders[i] == sender)
+          return false;
+      }
+      seenSenders[seenNext] = sender;
+      seenIDs[seenNext] = messageID;
+      seenNext = (seenNext + 1) % SEEN_IDS;
+      return true;
+    }
+
       /*
       * Parses a message based on the message type and either adds it to the
-      * messageList or if the message is an instruction from the server it calls a
+      * inbox or if the message is an instruction from the server it calls a
       * function to do the instruction (e.g. "Update client list")
       */
     private void parseMessage(Message msg) {
-    	System.out.println("Entered parse message");
+    	Log.log(Log.TRACE, "Entered parse message");
       final String msgType = msg.messageType;
 
       // Switch statement to check message type
       switch (msgType) {
       case "INIT":
-        System.out.println("Received Init");
         this.ID = msg.receiverID;
-        System.out.println(ID);
+        this.token = msg.token;
+        Log.log(Log.DEBUG, "Received Init, we are client {}", ID);
+        online();
         break;
       case "MESSAGE":
-        synchronized(messageList){
-          System.out.println("Message Received");
-          messageList.add(msg);
-          System.out.println(msg.message);
-          break;
+        if (msg.messageID != 0) {
+          // ACK even a resend, it means our first ACK got lost
+          Message ack = new Message();
+          ack.messageType = "ACK";
+          ack.senderID = ID;
+          ack.receiverID = msg.senderID;
+          ack.messageID = msg.messageID;
+          sendMessage(ack);
+          if (!firstTime(msg.senderID, msg.messageID))
+            break;
         }
+        inbox.add(msg); // if the inbox is full this drops the oldest (or msg, see evictOldest)
+        Log.log(Log.DEBUG, "Message from {}: {}", msg.senderID, msg.message);
+        if (onMessage != null)
+          onMessage.accept(msg);
+        input.refresh();
+        break;
       case "CLIENT_LIST":
-        synchronized(connectedClients){
-        	System.out.println("Enter client list update");
-          connectedClients = msg.clientList;
-          for(int i = 0; i < connectedClients.size(); i++)
-            if(connectedClients.get(i) == this.ID)
-              connectedClients.remove(i);
-          System.out.println(connectedClients);
+        if (msg.clientList == null) {
+          // Answer to a request when the list we have is already current
+          listVersion = Math.max(listVersion, msg.listVersion);
+          awaitingList = false;
           break;
         }
+        synchronized(connectedClients){
+          ArrayList<Integer> list = msg.clientList;
+          for(int i = 0; i < list.size(); i++)
+            if(list.get(i) == this.ID)
+              list.remove(i);
+          connectedClients = list;
+          Log.log(Log.DEBUG, "Client list: {}", list);
+        }
+        input.refresh();
+        boolean first = listVersion < 0;
+        listVersion = msg.listVersion;
+        awaitingList = false;
+        // A server that versions its lists can send JOIN/LEAVE instead, asking once turns that on.
+        // Our list is current, so this isn't waiting for anything.
+        if (first && msg.listVersion > 0)
+          sendListRequest();
+        break;
+      case "CLIENT_JOIN":
+      case "CLIENT_LEAVE":
+        applyClientDelta(msg);
+        break;
+      case "PING":
+        serverPings = true;
+        Message pong = new Message();
+        pong.messageType = "PONG";
+        pong.senderID = ID;
+        sendMessage(pong);
+        break;
+      case "PONG":
+        serverPings = true;
+        break;
+      case "ACK":
+        synchronized(sendLock) {
+          if (inFlight.remove(msg.messageID) != null)
+            delivered++;
+        }
+        break;
+      case "NACK":
+        synchronized(sendLock) {
+          if (inFlight.remove(msg.messageID) != null)
+            failed++;
+        }
+        if (msg.channel != null)
+          Log.log(Log.INFO, "Message to {} can't be delivered", msg.channel);
+        else
+          Log.log(Log.INFO, "Message to #{} can't be delivered", msg.senderID);
+        break;
       default:
         // Do nothing in the default
       }
     }
+
+    /*
+     * Someone joined or left. Deltas we already have are ignored; if one went
+     * missing (the version skips) we can't trust our list any more, so ask
+     * for the whole thing again.
+     */
+    private void applyClientDelta(Message msg) {
+      if (msg.listVersion <= listVersion)
+        return;
+      if (msg.listVersion != listVersion + 1) {
+        if (!awaitingList)
+          requestClientList();
+        return;
+      }
+      listVersion = msg.listVersion;
+      if (msg.senderID == this.ID)
+        return;
+      synchronized(connectedClients){
+        ArrayList<Integer> list = new ArrayList<Integer>(connectedClients);
+        if (msg.messageType.equals("CLIENT_JOIN")) {
+          if (!list.contains(msg.senderID))
+            list.add(msg.senderID);
+        }
+        else
+          list.remove(Integer.valueOf(msg.senderID));
+        connectedClients = list;
+        Log.log(Log.DEBUG, "Client list: {}", list);
+      }
+      input.refresh();
+    }
+
+    // Asks the server for the full client list, telling it which version we have
+    void requestClientList() {
+      awaitingList = true;
+      sendListRequest();
+    }
+
+    // The server answers with the list, or just its version if ours is still current
+    private void sendListRequest() {
+      Message request = new Message();
+      request.senderID = ID;
+      request.messageType = "CLIENT_LIST";
+      request.listVersion = listVersion;
+      sendMessage(request);
+    }
   }
 
+  // Usage: java Client [--framed | --binary] [--headless] [--host <ip>] [--inbox <n>] [--inbox-keep-old]
+  //                    [--inbox-dir <dir> | --no-inbox-dir] [--ping-interval <s>] [--dead-after <s>]
+  // --headless draws the LCD on stdout and reads button presses from stdin (see SimulatedButtons)
+  // --inbox keeps the last n messages, --inbox-keep-old drops new messages instead once it is full
+  // --inbox-dir is where messages are saved between runs (default inbox), --no-inbox-dir keeps them in memory only
+  // --ping-interval 0 turns heartbeats off
   public static void main(final String args[]) throws InterruptedException {
-    //TODO configure ip adress
-    Client theClient = new Client(5555, "10.7.33.80");
+    MessageCodec codec = null;
+    boolean headless = false;
+    String host = "10.7.33.80"; //TODO configure ip adress
+    int inboxSize = INBOX_SIZE;
+    boolean evictOldest = true;
+    File inboxDir = new File("inbox");
+    int pingMillis = PING_INTERVAL_MS;
+    int deadMillis = DEAD_AFTER_MS;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--framed"))
+        codec = MessageCodec.SERIALIZED;
+      else if (args[i].equals("--binary"))
+        codec = MessageCodec.BINARY;
+      else if (args[i].equals("--headless"))
+        headless = true;
+      else if (args[i].equals("--host"))
+        host = args[++i];
+      else if (args[i].equals("--inbox"))
+        inboxSize = Integer.parseInt(args[++i]);
+      else if (args[i].equals("--inbox-keep-old"))
+        evictOldest = false;
+      else if (args[i].equals("--inbox-dir"))
+        inboxDir = new File(args[++i]);
+      else if (args[i].equals("--no-inbox-dir"))
+        inboxDir = null;
+      else if (args[i].equals("--ping-interval"))
+        pingMillis = Integer.parseInt(args[++i]) * 1000;
+      else if (args[i].equals("--dead-after"))
+        deadMillis = Integer.parseInt(args[++i]) * 1000;
+      else if (args[i].equals("--log-level"))
+        Log.setLevel(args[++i]);
+    }
+    Client theClient = new Client(5555, host, codec, inboxSize, evictOldest, inboxDir);
+    theClient.connection.pingMillis = pingMillis;
+    theClient.connection.deadMillis = deadMillis;
     //theClient.messageDemo();
-    if (theClient.initClient()) { // If initing the client is successful start the menu function
-      System.out.println("Init correctly");
+    boolean ready;
+    if (headless) {
+      SimulatedLcd lcd = new SimulatedLcd(LCD_ROWS, LCD_COLUMNS);
+      lcd.echo = true;
+      SimulatedButtons buttons = new SimulatedButtons();
+      theClient.initClient(lcd, buttons);
+      buttons.playFrom(System.in);
+      ready = true;
+    }
+    else
+      ready = theClient.initClient();
+    if (ready) { // If initing the client is successful start the menu function
+      Log.log(Log.INFO, "Init correctly");
       theClient.connection.start();
-      theClient.menuState(false);
+      theClient.run();
     }
-    System.out.println("Init failed");
+    Log.log(Log.ERROR, "Init failed");
+    Log.flush(1000); // nothing else keeps the JVM up
   }
 }
 
@@ -1164,4 +1347,8 @@ class Message implements Serializable {
   public String message;
   public String messageType;
   public ArrayList<Integer> clientList;
+  public long listVersion; // CLIENT_LIST/JOIN/LEAVE: which version of the client list this is
+  public long token; // INIT: hand this back in the hello to keep the same ID after a reconnect
+  public long messageID; // MESSAGE/ACK/NACK: set by the sender, unique among its messages, 0 for none
+  public String channel; // MESSAGE: the group it was sent to, null for one receiver. SUBSCRIBE/UNSUBSCRIBE: which group
 }
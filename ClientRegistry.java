@@ -0,0 +1,189 @@
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * The server's routing table: client ID -> connection.
+ *
+ * Lookups happen for every routed message while connects and disconnects
+ * are rare, so the table is copy-on-write. Readers grab the current
+ * Snapshot with one volatile read and never lock; writers build a new
+ * Snapshot and swap it in with a CAS. IDs are plain ints all the way
+ * through, so routing never boxes.
+ */
+class ClientRegistry<C> {
+
+    private final AtomicInteger nextID = new AtomicInteger(1);
+    private final AtomicReference<Snapshot<C>> current =
+            new AtomicReference<Snapshot<C>>(new Snapshot<C>(new int[0], new Object[0], 0));
+    private volatile int[] retired = new int[0]; // sorted, copy-on-write like the table
+
+    // Hands out the next unused client ID
+    int nextID() {
+        return nextID.getAndIncrement();
+    }
+
+    // True if ID has been handed out and not retired, whether or not it is connected now
+    boolean issued(int ID) {
+        return ID > 0 && ID < nextID.get() && Arrays.binarySearch(retired, ID) < 0;
+    }
+
+    // ID's session has expired, nothing should be kept for it any more
+    synchronized void retire(int ID) {
+        int at = Arrays.binarySearch(retired, ID);
+        if (at >= 0)
+            return;
+        at = -at - 1;
+        int[] more = new int[retired.length + 1];
+        System.arraycopy(retired, 0, more, 0, at);
+        more[at] = ID;
+        System.arraycopy(retired, at, more, at + 1, retired.length - at);
+        retired = more;
+    }
+
+    C get(int ID) {
+        return current.get().get(ID);
+    }
+
+    boolean contains(int ID) {
+        return current.get().indexOf(ID) >= 0;
+    }
+
+    int size() {
+        return current.get().size;
+    }
+
+    // A consistent view that stays the same however the registry changes later
+    Snapshot<C> snapshot() {
+        return current.get();
+    }
+
+    /*
+     * Adds or replaces the connection for ID and returns the snapshot that
+     * includes it. Replacing doesn't change who is connected, so only adding
+     * a new ID bumps the version.
+     */
+    Snapshot<C> put(int ID, C c) {
+        while (true) {
+            Snapshot<C> old = current.get();
+            int index = old.indexOf(ID);
+            Snapshot<C> updated;
+            if (index >= 0) {
+                Object[] conns = old.conns.clone();
+                conns[index] = c;
+                updated = new Snapshot<C>(old.ids, conns, old.version);
+            } else {
+                int[] ids = new int[old.size + 1];
+                Object[] conns = new Object[old.size + 1];
+                System.arraycopy(old.ids, 0, ids, 0, old.size);
+                System.arraycopy(old.conns, 0, conns, 0, old.size);
+                ids[old.size] = ID;
+                conns[old.size] = c;
+                updated = new Snapshot<C>(ids, conns, old.version + 1);
+            }
+            if (current.compareAndSet(old, updated))
+                return updated;
+        }
+    }
+
+    /*
+     * Removes ID, but only if it still maps to c. Returns the snapshot
+     * without it, or null if there was nothing to remove.
+     */
+    Snapshot<C> remove(int ID, C c) {
+        while (true) {
+            Snapshot<C> old = current.get();
+            int index = old.indexOf(ID);
+            if (index < 0 || old.conns[index] != c)
+                return null;
+            int[] ids = new int[old.size - 1];
+            Object[] conns = new Object[old.size - 1];
+            System.arraycopy(old.ids, 0, ids, 0, index);
+            System.arraycopy(old.conns, 0, conns, 0, index);
+            System.arraycopy(old.ids, index + 1, ids, index, old.size - index - 1);
+            System.arraycopy(old.conns, index + 1, conns, index, old.size - index - 1);
+            Snapshot<C> updated = new Snapshot<C>(ids, conns, old.version + 1);
+            if (current.compareAndSet(old, updated))
+                return updated;
+        }
+    }
+
+    public String toString() {
+        return current.get().toString();
+    }
+
+    /*
+     * Immutable table. ids/conns are in connection order (that's the order
+     * CLIENT_LIST goes out in), slots is an open addressing index into them.
+     */
+    static final class Snapshot<C> {
+        final int[] ids;
+        final Object[] conns;
+        final int size;
+        final long version; // goes up by one every time someone joins or leaves
+        private final int[] slots; // index + 1 into ids, 0 for an empty slot
+        private final int mask;
+
+        Snapshot(int[] ids, Object[] conns, long version) {
+            this.ids = ids;
+            this.conns = conns;
+            this.size = ids.length;
+            this.version = version;
+
+            int capacity = 4;
+            while (capacity < size * 2)
+                capacity <<= 1;
+            slots = new int[capacity];
+            mask = capacity - 1;
+            for (int i = 0; i < size; i++) {
+                int slot = hash(ids[i]) & mask;
+                while (slots[slot] != 0)
+                    slot = (slot + 1) & mask;
+                slots[slot] = i + 1;
+            }
+        }
+
+        static int hash(int ID) {
+            int h = ID * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        int indexOf(int ID) {
+            int slot = hash(ID) & mask;
+            while (true) {
+                int entry = slots[slot];
+                if (entry == 0)
+                    return -1;
+                if (ids[entry - 1] == ID)
+                    return entry - 1;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        C get(int ID) {
+            int index = indexOf(ID);
+            return index < 0 ? null : (C) conns[index];
+        }
+
+        int idAt(int index) {
+            return ids[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        C connectionAt(int index) {
+            return (C) conns[index];
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0)
+                    sb.append(", ");
+                sb.append(ids[i]);
+            }
+            return sb.append(']').toString();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Checks the handset side without a Pi: LcdFrame, Inbox and the LongMap
+ * that tracks unACKed messages on their own,
+ * then a whole Client on a SimulatedLcd and SimulatedButtons, talking to a
+ * stand-in server on loopback that speaks just enough of the protocol
+ * (hello, INIT, CLIENT_LIST, CLIENT_JOIN, MESSAGE). Screens are checked by
+ * reading the LCD rows back, the same text a real display would show.
+ *
+ * Plain main like CodecTests: prints each check and exits with 1 if any
+ * failed.
+ *
+ * Usage: java ClientTests
+ * Compile it with the client sources.
+ */
+class ClientTests {
+
+  private static int failed = 0;
+
+  static void check(boolean ok, String what) {
+    System.out.println((ok ? "ok   " : "FAIL ") + what);
+    if (!ok)
+      failed++;
+  }
+
+  static Message message(int from, String text) {
+    Message msg = new Message();
+    msg.messageType = "MESSAGE";
+    msg.senderID = from;
+    msg.message = text;
+    return msg;
+  }
+
+  static void lcdFrame() {
+    SimulatedLcd lcd = new SimulatedLcd(4, 20);
+    LcdFrame frame = new LcdFrame(lcd);
+    frame.puts(0, 0, "MENU");
+    frame.puts(0, 1, "(1) Read Messages");
+    frame.puts(15, 2, "cut off here");
+    frame.puts(0, 9, "off the screen");
+    frame.commit();
+    check(lcd.row(0).equals("MENU                ") && lcd.row(1).equals("(1) Read Messages   "),
+        "lcd frame: text shows up where it was put");
+    check(lcd.row(2).equals("               cut o"), "lcd frame: past the end of a row is cut off");
+
+    long writes = frame.writes();
+    long avoided = frame.writesAvoided();
+    frame.clear();
+    frame.puts(0, 0, "MENU");
+    frame.puts(0, 1, "(1) Read Messages");
+    frame.puts(15, 2, "cut off here");
+    frame.commit();
+    check(frame.writes() == writes && frame.writesAvoided() == avoided + 4 * 21,
+        "lcd frame: the same frame again costs nothing");
+
+    frame.puts(1, 1, "2");
+    frame.commit();
+    check(frame.writes() == writes + 2 && lcd.row(1).equals("(2) Read Messages   "),
+        "lcd frame: one changed character is a position and a character");
+
+    frame.clear();
+    frame.commit();
+    check(lcd.row(0).trim().isEmpty() && lcd.row(1).trim().isEmpty(), "lcd frame: cleared frame blanks the display");
+
+    frame.showCursor(true);
+    frame.cursor(3, 1);
+    frame.commit();
+    check(lcd.toString().split("\n")[2].equals("|   _                |"), "lcd frame: cursor goes where it was put");
+  }
+
+  static void inbox() {
+    Inbox inbox = new Inbox(3, true);
+    for (int i = 0; i < 4; i++)
+      inbox.add(message(1, "m" + i));
+    check(inbox.size() == 3 && inbox.dropped() == 1 && inbox.get(0) == null && inbox.get(1).message.equals("m1"),
+        "inbox: full one drops the oldest");
+    check(inbox.newest() == 3 && inbox.oldest() == 1 && inbox.older(3) == 2 && inbox.newer(3) == -1,
+        "inbox: newest, oldest, older and newer");
+    check(inbox.unread() == 3, "inbox: unread counts what is still there");
+    inbox.markViewed();
+    inbox.add(message(1, "m4"));
+    check(inbox.unread() == 1, "inbox: markViewed leaves only newer ones unread");
+
+    check(inbox.remove(3) && !inbox.remove(3) && inbox.get(3) == null, "inbox: remove once");
+    check(inbox.newer(2) == 4 && inbox.older(4) == 2 && inbox.size() == 2 && inbox.position(4) == 2,
+        "inbox: removed messages are skipped");
+
+    Inbox keepOld = new Inbox(2, false);
+    check(keepOld.add(message(1, "a")) && keepOld.add(message(1, "b")) && !keepOld.add(message(1, "c")),
+        "inbox: keep-old refuses new ones once full");
+    check(keepOld.get(0).message.equals("a") && keepOld.dropped() == 1, "inbox: keep-old still has the oldest");
+  }
+
+  static void longMap() {
+    LongMap<String> map = new LongMap<String>(4);
+    check(map.put(0, "zero") == null && map.put(-1, "minus one") == null && map.put(Long.MIN_VALUE, "min") == null,
+        "long map: zero, negative and the smallest long are keys like any other");
+    check(map.get(0).equals("zero") && map.get(-1).equals("minus one") && map.get(Long.MIN_VALUE).equals("min")
+        && map.get(1) == null, "long map: get finds them");
+    check(map.put(0, "nought").equals("zero") && map.size() == 3, "long map: put again replaces and returns the old one");
+    boolean threw = false;
+    try {
+      map.put(5, null);
+    } catch (NullPointerException e) {
+      threw = true;
+    }
+    check(threw && !map.containsKey(5), "long map: null values are refused");
+
+    // Lots of puts and removes over few keys, so runs collide and removes have to pull entries back
+    LongMap<Long> longs = new LongMap<Long>();
+    HashMap<Long, Long> expected = new HashMap<Long, Long>();
+    Random random = new Random(42);
+    boolean same = true;
+    for (int i = 0; i < 100000; i++) {
+      long key = random.nextInt(500) * 1024L; // same low bits, the hash has to spread them
+      if (random.nextInt(3) == 0)
+        same &= equal(longs.remove(key), expected.remove(key));
+      else
+        same &= equal(longs.put(key, (long) i), expected.put(key, (long) i));
+    }
+    for (long key = 0; key < 500 * 1024L; key += 1024)
+      same &= equal(longs.get(key), expected.get(key));
+    check(same && longs.size() == expected.size(), "long map: agrees with a HashMap through 100000 puts and removes");
+
+    int walked = 0;
+    for (int i = 0; i < longs.capacity(); i++) {
+      if (longs.valueAt(i) != null) {
+        walked++;
+        same &= longs.valueAt(i).equals(expected.get(longs.keyAt(i)));
+      }
+    }
+    check(same && walked == expected.size(), "long map: walking the slots finds every entry once");
+    longs.clear();
+    check(longs.size() == 0 && longs.get(0) == null, "long map: clear empties it");
+  }
+
+  static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /*
+   * Just enough of a Server for one handset: answers the hello, gives it
+   * ID 2 and a list of [1, 2], then hands it whatever toClient gets and
+   * puts every MESSAGE it sends in fromClient.
+   */
+  static class StandIn extends Thread {
+    final ServerSocket listener = new ServerSocket(0);
+    final LinkedBlockingQueue<Message> toClient = new LinkedBlockingQueue<Message>();
+    final LinkedBlockingQueue<Message> fromClient = new LinkedBlockingQueue<Message>();
+
+    StandIn() throws IOException {
+      super("stand-in");
+      setDaemon(true);
+    }
+
+    public void run() {
+      try (Socket s = listener.accept()) {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        final MessageCodec codec = MessageFrames.acceptHello(in, out).codec;
+        Message init = new Message();
+        init.messageType = "INIT";
+        init.receiverID = 2;
+        init.token = 99;
+        MessageFrames.writeFrame(out, init, codec);
+        Message list = new Message();
+        list.messageType = "CLIENT_LIST";
+        list.clientList = new ArrayList<Integer>(Arrays.asList(1, 2));
+        list.listVersion = 1;
+        MessageFrames.writeFrame(out, list, codec);
+
+        Thread writer = new Thread(() -> {
+          try {
+            while (true)
+              MessageFrames.writeFrame(out, toClient.take(), codec);
+          } catch (Exception e) {
+          }
+        }, "stand-in-writer");
+        writer.setDaemon(true);
+        writer.start();
+        while (true) {
+          Message msg = MessageFrames.readFrame(in, codec);
+          if ("MESSAGE".equals(msg.messageType))
+            fromClient.add(msg);
+        }
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  // Waits for row y to read text (trailing spaces don't matter), false after 2s
+  static boolean shows(SimulatedLcd lcd, int y, String text) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 2000;
+    while (true) {
+      long seen = lcd.frames();
+      if (lcd.row(y).trim().equals(text))
+        return true;
+      if (System.currentTimeMillis() > deadline)
+        return false;
+      lcd.awaitFrame(seen, 100);
+    }
+  }
+
+  static void headlessClient() throws Exception {
+    StandIn server = new StandIn();
+    server.start();
+
+    final Client client = new Client(server.listener.getLocalPort(), "127.0.0.1", MessageCodec.BINARY, 8, true, null);
+    SimulatedLcd lcd = new SimulatedLcd(Client.LCD_ROWS, Client.LCD_COLUMNS);
+    SimulatedButtons buttons = new SimulatedButtons();
+    client.initClient(lcd, buttons);
+    client.connection.start();
+    Thread ui = new Thread(() -> {
+      try {
+        client.run();
+      } catch (InterruptedException e) {
+      }
+    }, "ui");
+    ui.setDaemon(true);
+    ui.start();
+
+    check(shows(lcd, 0, "MENU") && shows(lcd, 1, ">(1) Read Messages"), "client: starts on the menu, online");
+    buttons.play("down");
+    check(shows(lcd, 2, ">(2) Send Message") && shows(lcd, 1, "(1) Read Messages"), "client: down moves the arrow");
+    buttons.play("up select");
+    check(shows(lcd, 1, "NO") && shows(lcd, 2, "MESSAGES"), "client: empty inbox says so");
+
+    server.toClient.add(message(1, "Hello from the other handset"));
+    check(shows(lcd, 0, "001/001 FROM: #1") && shows(lcd, 1, "Hello from the other") && shows(lcd, 2, "handset"),
+        "client: a message that comes in is shown at once, over two rows");
+
+    buttons.play("left");
+    check(shows(lcd, 1, ">(1) Read Messages"), "client: left goes back to the menu, nothing unread");
+
+    // Client list from the hello, minus ourselves, then a JOIN on top of it
+    buttons.play("down down select");
+    check(shows(lcd, 0, "Clients:") && shows(lcd, 1, ">(1) client #1") && shows(lcd, 2, "--empty--"),
+        "client: list leaves our own ID out");
+    Message join = new Message();
+    join.messageType = "CLIENT_JOIN";
+    join.senderID = 7;
+    join.listVersion = 2;
+    server.toClient.add(join);
+    check(shows(lcd, 2, "(2) client #7"), "client: a JOIN shows up without leaving the screen");
+
+    // Quick reply "Yes" (the third one) to client 7
+    buttons.play("down select select down down select");
+    Message sent = server.fromClient.poll(2, TimeUnit.SECONDS);
+    check(sent != null && sent.receiverID == 7 && sent.senderID == 2 && "Yes".equals(sent.message) && sent.messageID != 0,
+        "client: quick reply goes to the picked client with an ID to ACK");
+    check(shows(lcd, 0, "MENU"), "client: back on the menu after sending");
+
+    client.connection.shutdown();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Log.setLevel(Log.OFF);
+    lcdFrame();
+    inbox();
+    longMap();
+    headlessClient();
+    System.out.println(failed == 0 ? "All passed" : failed + " failed");
+    System.exit(failed == 0 ? 0 : 1);
+  }
+}
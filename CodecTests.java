@@ -0,0 +1,224 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Checks that every Message field survives a trip through each codec and
+ * through MessageFrames, including the cases that have bitten us: nulls,
+ * types the BINARY tag table doesn't know, big and negative numbers,
+ * non-ASCII text, and frames from senders older than the last few fields.
+ * Then the hello both ends use to agree on a codec, and that an old
+ * client's serialization stream is told apart from it.
+ *
+ * No JUnit on the Pi, so it is a plain main that prints each check and
+ * exits with 1 if any failed.
+ *
+ * Usage: java CodecTests
+ * Compile it with the client sources.
+ */
+class CodecTests {
+
+  private static int failed = 0;
+
+  static void check(boolean ok, String what) {
+    System.out.println((ok ? "ok   " : "FAIL ") + what);
+    if (!ok)
+      failed++;
+  }
+
+  // Every field set, and to something that needs more than one varint byte where it can
+  static Message full() {
+    Message msg = new Message();
+    msg.messageType = "MESSAGE";
+    msg.senderID = 17;
+    msg.receiverID = 70000;
+    msg.message = "Caf\u00e9 at 5? \u2713"; // two and three UTF-8 bytes
+    msg.clientList = new ArrayList<Integer>(Arrays.asList(1, 200, 70000));
+    msg.listVersion = 1L << 40;
+    msg.token = -8_000_000_000L;
+    msg.messageID = Long.MAX_VALUE;
+    msg.channel = "pi-club";
+    return msg;
+  }
+
+  static boolean same(Message a, Message b) {
+    return a.senderID == b.senderID && a.receiverID == b.receiverID
+        && equal(a.message, b.message) && equal(a.messageType, b.messageType)
+        && equal(a.clientList, b.clientList) && a.listVersion == b.listVersion
+        && a.token == b.token && a.messageID == b.messageID && equal(a.channel, b.channel);
+  }
+
+  static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  static Message roundTrip(MessageCodec codec, Message msg) throws IOException {
+    byte[] bytes = codec.encode(msg);
+    return codec.decode(bytes, 0, bytes.length);
+  }
+
+  static void codec(String name, MessageCodec codec) throws IOException {
+    check(same(full(), roundTrip(codec, full())), name + ": every field");
+    check(same(new Message(), roundTrip(codec, new Message())), name + ": every field null or 0");
+
+    Message ping = new Message();
+    ping.messageType = "SUBSCRIBE"; // not in the BINARY tag table, goes by name
+    ping.channel = "";
+    check(same(ping, roundTrip(codec, ping)), name + ": type sent by name, empty channel");
+
+    Message odd = full();
+    odd.senderID = -1;
+    odd.receiverID = Integer.MIN_VALUE;
+    odd.clientList = new ArrayList<Integer>();
+    odd.message = "";
+    check(same(odd, roundTrip(codec, odd)), name + ": negative IDs, empty list and text");
+
+    // Decoding from the middle of a bigger buffer, like a frame in a read buffer
+    byte[] payload = codec.encode(full());
+    byte[] padded = new byte[payload.length + 10];
+    System.arraycopy(payload, 0, padded, 7, payload.length);
+    check(same(full(), codec.decode(padded, 7, payload.length)), name + ": decode at an offset");
+  }
+
+  static void binaryCompatibility() throws IOException {
+    // An older sender stops after the client list: no listVersion, token, messageID or channel
+    Message old = new Message();
+    old.messageType = "MESSAGE";
+    old.senderID = 3;
+    old.receiverID = 4;
+    old.message = "hi";
+    byte[] bytes = MessageCodec.BINARY.encode(old);
+    Message back = MessageCodec.BINARY.decode(bytes, 0, bytes.length - 3); // the three zero varlongs
+    check(same(old, back), "binary: frame from a sender without the newer fields");
+
+    check(MessageCodec.BINARY.encode(old).length < MessageCodec.SERIALIZED.encode(old).length,
+        "binary: smaller than serialized");
+
+    bytes[0] = (byte) 99;
+    boolean threw = false;
+    try {
+      MessageCodec.BINARY.decode(bytes, 0, bytes.length);
+    } catch (IOException e) {
+      threw = true;
+    }
+    check(threw, "binary: unknown type tag is an IOException");
+
+    check(MessageCodec.forId(MessageCodec.BINARY.id) == MessageCodec.BINARY
+        && MessageCodec.forId(MessageCodec.SERIALIZED.id) == MessageCodec.SERIALIZED
+        && MessageCodec.forId((byte) 42) == null, "forId finds both codecs and nothing else");
+  }
+
+  static void frames() throws IOException {
+    Message second = full();
+    second.message = "second";
+    byte[] a = MessageFrames.frameBytes(full(), MessageCodec.BINARY);
+    byte[] b = MessageFrames.frameBytes(second, MessageCodec.BINARY);
+
+    // Two whole frames and the first half of a third, the way a read can leave them
+    ByteBuffer buf = ByteBuffer.allocate(a.length + b.length + b.length / 2);
+    buf.put(a).put(b).put(b, 0, b.length / 2);
+    buf.flip();
+    check(same(full(), MessageFrames.nextFrame(buf, MessageCodec.BINARY)), "frames: first");
+    check(same(second, MessageFrames.nextFrame(buf, MessageCodec.BINARY)), "frames: second");
+    int at = buf.position();
+    check(MessageFrames.nextFrame(buf, MessageCodec.BINARY) == null && buf.position() == at,
+        "frames: half a frame is left where it is");
+
+    ByteBuffer bad = ByteBuffer.allocate(8);
+    bad.putInt(-5).putInt(0);
+    bad.flip();
+    boolean threw = false;
+    try {
+      MessageFrames.nextFrame(bad, MessageCodec.BINARY);
+    } catch (IOException e) {
+      threw = true;
+    }
+    check(threw, "frames: negative length is an IOException");
+
+    byte[] hello = MessageFrames.hello(MessageCodec.BINARY.id);
+    check(MessageFrames.isHello(ByteBuffer.wrap(hello)), "hello is recognised");
+    check(!MessageFrames.isSerializationStream(hello[0], hello[1]), "hello isn't taken for a serialization header");
+    check(MessageFrames.isSerializationStream((byte) 0xAC, (byte) 0xED), "serialization header is recognised");
+    check(new String(MessageCodec.BINARY.encode(full()), StandardCharsets.ISO_8859_1).contains("pi-club"),
+        "binary: channel name goes out as is");
+  }
+
+  static DataInputStream input(byte[] bytes) {
+    return new DataInputStream(new ByteArrayInputStream(bytes));
+  }
+
+  // One end at a time: what the client writes is fed to acceptHello, then the other way round
+  static MessageFrames.Hello negotiate(MessageCodec codec, long token, boolean heartbeats, boolean acks,
+      MessageCodec[] agreed) throws IOException {
+    ByteArrayOutputStream clientHello = new ByteArrayOutputStream();
+    ByteArrayOutputStream serverHello = new ByteArrayOutputStream();
+    // The client reads the server's answer after writing its own, so a stand-in answer is enough for its side
+    MessageFrames.handshake(new DataOutputStream(clientHello), input(MessageFrames.hello(codec.id)), codec, token,
+        heartbeats, acks);
+    MessageFrames.Hello h = MessageFrames.acceptHello(input(clientHello.toByteArray()), new DataOutputStream(serverHello));
+    agreed[0] = MessageFrames.handshake(new DataOutputStream(new ByteArrayOutputStream()),
+        input(serverHello.toByteArray()), codec, token, heartbeats, acks);
+    return h;
+  }
+
+  static void negotiation() throws IOException {
+    MessageCodec[] agreed = new MessageCodec[1];
+    MessageFrames.Hello h = negotiate(MessageCodec.BINARY, 0, false, false, agreed);
+    check(h.codec == MessageCodec.BINARY && agreed[0] == MessageCodec.BINARY && h.token == 0 && !h.heartbeats && !h.acks,
+        "hello: both ends agree on binary");
+    h = negotiate(MessageCodec.SERIALIZED, -42L, true, true, agreed);
+    check(h.codec == MessageCodec.SERIALIZED && agreed[0] == MessageCodec.SERIALIZED && h.token == -42L
+        && h.heartbeats && h.acks, "hello: token and flags get through, codec isn't mixed up with them");
+
+    // A newer client asking for a codec this server doesn't have gets serialized
+    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+    h = MessageFrames.acceptHello(input(MessageFrames.hello((byte) 9)), new DataOutputStream(reply));
+    check(h.codec == MessageCodec.SERIALIZED
+        && Arrays.equals(reply.toByteArray(), MessageFrames.hello(MessageCodec.SERIALIZED.id)),
+        "hello: unknown codec falls back to serialized, and the client is told");
+
+    boolean threw = false;
+    try {
+      MessageFrames.handshake(new DataOutputStream(new ByteArrayOutputStream()), input(MessageFrames.hello((byte) 9)),
+          MessageCodec.BINARY);
+    } catch (IOException e) {
+      threw = true;
+    }
+    check(threw, "hello: a server answering with a codec we don't know is an IOException");
+
+    threw = false;
+    try {
+      MessageFrames.acceptHello(input(new byte[] {'H', 'T', 'T', 'P', ' '}), new DataOutputStream(new ByteArrayOutputStream()));
+    } catch (IOException e) {
+      threw = true;
+    }
+    check(threw, "hello: anything else is refused");
+
+    // What an old client really sends first
+    ByteArrayOutputStream old = new ByteArrayOutputStream();
+    ObjectOutputStream objects = new ObjectOutputStream(old);
+    objects.writeObject(full());
+    objects.flush();
+    byte[] bytes = old.toByteArray();
+    check(MessageFrames.isSerializationStream(bytes[0], bytes[1]) && !MessageFrames.isHello(ByteBuffer.wrap(bytes)),
+        "hello: an old client's stream is told apart from a hello");
+  }
+
+  public static void main(String[] args) throws IOException {
+    codec("serialized", MessageCodec.SERIALIZED);
+    codec("binary", MessageCodec.BINARY);
+    binaryCompatibility();
+    frames();
+    negotiation();
+    System.out.println(failed == 0 ? "All passed" : failed + " failed");
+    System.exit(failed == 0 ? 0 : 1);
+  }
+}
@@ -0,0 +1,37 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * A Message on its way to one or more connections, with its frame bytes
+ * kept once per codec. Fanning a message out to 500 framed clients then
+ * encodes it once (twice if both codecs are in use) and every connection
+ * writes the same bytes, instead of each one serializing it again.
+ *
+ * Old clients on a plain serialization stream still get msg written to
+ * their ObjectOutputStream, that can't be shared.
+ */
+class EncodedMessage {
+
+    final Message msg;
+    private final byte[][] frames = new byte[3][]; // by codec id
+
+    EncodedMessage(Message msg) {
+        this.msg = msg;
+    }
+
+    // Length prefix plus payload, encoded the first time a codec asks
+    synchronized byte[] frame(MessageCodec codec) throws IOException {
+        byte[] frame = frames[codec.id];
+        if (frame == null) {
+            frame = MessageFrames.frameBytes(msg, codec);
+            frames[codec.id] = frame;
+        }
+        return frame;
+    }
+
+    // The frame as a buffer of its own, so each connection can write it at its own pace
+    ByteBuffer frameBuffer(MessageCodec codec) throws IOException {
+        return ByteBuffer.wrap(frame(codec));
+    }
+}
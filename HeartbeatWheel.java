@@ -0,0 +1,143 @@
+
+import java.util.ArrayList;
+import java.util.function.Predicate;
+
+/*
+ * Finds connections whose client has silently gone (out of Wi-Fi range,
+ * battery pulled) so they don't sit in the routing table until TCP gives
+ * up hours later.
+ *
+ * Every connection is on one hashed timer wheel, checked by a single
+ * thread: each tick the thread takes the connections in the current slot
+ * and looks at when we last heard from each. A client that has been quiet
+ * for pingNanos gets a PING; one that has been quiet for deadNanos is
+ * disconnected. Either way it goes back on the wheel for its next check.
+ * Pings only go out if they fit in the client's queue without waiting, so
+ * one stalled client can't hold up the thread.
+ * Reading a message only stamps the connection's lastHeard, it never
+ * touches the wheel.
+ *
+ * Clients from before heartbeats never answer a PING, so they are only
+ * pinged or dropped if their hello said they answer them
+ * (MessageFrames.HEARTBEAT_FLAG) or they have sent a PING or PONG
+ * themselves (see Connection.sendsHeartbeats).
+ */
+class HeartbeatWheel {
+
+    private final long pingNanos;
+    private final long deadNanos;
+    private final long tickNanos;
+    private final Predicate<Server.Connection> registered; // false once a connection has left
+    private final ArrayList<ArrayList<Server.Connection>> slots = new ArrayList<ArrayList<Server.Connection>>();
+    private final Thread thread;
+    private long cursor = 0; // ticks since start, the slot being checked is cursor % slots.size()
+    private long started;
+    private volatile boolean stopped = false;
+    private long evicted = 0;
+    private volatile long pingsSkipped = 0; // only the wheel thread writes it
+
+    HeartbeatWheel(long pingNanos, long deadNanos, Predicate<Server.Connection> registered) {
+        this.pingNanos = pingNanos;
+        this.deadNanos = deadNanos;
+        this.registered = registered;
+        // Eight ticks per ping interval is plenty, nobody needs to be dropped to the millisecond
+        this.tickNanos = Math.max(pingNanos / 8, 1000000);
+        // Nothing is ever scheduled further ahead than the longer of the two, so no laps
+        int size = (int) (Math.max(pingNanos, deadNanos) / tickNanos) + 2;
+        for (int i = 0; i < size; i++)
+            slots.add(new ArrayList<Server.Connection>());
+        thread = new Thread(this::run, "heartbeat");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        started = System.nanoTime();
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    // Starts watching c, call once it is registered
+    void add(Server.Connection c) {
+        synchronized (this) {
+            schedule(c, System.nanoTime() + pingNanos);
+        }
+    }
+
+    // Connections dropped for going quiet
+    synchronized long evicted() {
+        return evicted;
+    }
+
+    // Pings not sent because the client's queue was full
+    long pingsSkipped() {
+        return pingsSkipped;
+    }
+
+    private void schedule(Server.Connection c, long due) {
+        long ticks = (due - started + tickNanos - 1) / tickNanos; // the first tick at or after due
+        ticks = Math.max(ticks, cursor + 1);
+        ticks = Math.min(ticks, cursor + slots.size() - 1);
+        slots.get((int) (ticks % slots.size())).add(c);
+    }
+
+    private void run() {
+        Message ping = new Message();
+        ping.messageType = "PING";
+        while (!stopped) {
+            ArrayList<Server.Connection> due;
+            synchronized (this) {
+                long wait = started + (cursor + 1) * tickNanos - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        wait(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                cursor++;
+                int slot = (int) (cursor % slots.size());
+                due = slots.get(slot);
+                slots.set(slot, new ArrayList<Server.Connection>());
+            }
+
+            // Sends and disconnects happen outside the lock, so add() never waits on a socket
+            long now = System.nanoTime();
+            ArrayList<Server.Connection> keep = new ArrayList<Server.Connection>(due.size());
+            for (int i = 0; i < due.size(); i++) {
+                Server.Connection c = due.get(i);
+                if (!registered.test(c))
+                    continue; // it left, forget it
+                long quiet = now - c.lastHeard();
+                if (c.sendsHeartbeats() && quiet >= deadNanos) {
+                    Log.log(Log.INFO, "Client {} stopped answering", c.clientID());
+                    c.disconnect();
+                    synchronized (this) {
+                        evicted++;
+                    }
+                    continue;
+                }
+                // Not sendMessage, that can wait under --overflow block. A full queue
+                // means the client is behind anyway, it just misses this ping.
+                if (c.sendsHeartbeats() && quiet >= pingNanos && !c.sendIfRoom(ping))
+                    pingsSkipped++;
+                keep.add(c);
+            }
+
+            synchronized (this) {
+                for (int i = 0; i < keep.size(); i++) {
+                    Server.Connection c = keep.get(i);
+                    long last = c.lastHeard();
+                    // Next look: when it would need a ping, or if it is already
+                    // overdue for one, when it would be dead
+                    long next = now - last < pingNanos ? last + pingNanos : Math.min(now + pingNanos, last + deadNanos);
+                    schedule(c, next);
+                }
+            }
+        }
+    }
+}
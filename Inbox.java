@@ -0,0 +1,205 @@
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * The handset's received messages: a fixed size ring, so a flood can't
+ * use up memory.
+ *
+ * One thread (the network thread) adds, one thread (the UI) reads and
+ * deletes, and neither ever locks. Every message gets a sequence number
+ * when it is added; the UI refers to messages by that number and get()
+ * finds the slot in O(1). Sequence numbers below first() have been
+ * evicted, slots the UI deleted read as null.
+ *
+ * When the ring is full the oldest message makes room for the new one,
+ * or with evictOldest off the new one is dropped instead.
+ *
+ * With an InboxStore every message added is also written to disk and the
+ * ring is just the newest part of the history: sequence numbers are the
+ * store's message numbers, anything older than first() is read back from
+ * the store, and deletes are saved there. On start up only the newest
+ * page is loaded.
+ */
+class Inbox {
+
+  private final AtomicReferenceArray<Message> slots;
+  private final int capacity;
+  private final boolean evictOldest;
+  private final InboxStore store; // null = memory only
+  private volatile long first = 0; // oldest sequence number still in the ring
+  private volatile long end = 0; // next sequence number to hand out
+  private final AtomicInteger live = new AtomicInteger(); // in the ring and not deleted
+  private volatile long viewedUpTo = 0; // everything below this has been seen
+  private long dropped = 0; // writer only
+
+  Inbox(int capacity, boolean evictOldest) {
+    this(capacity, evictOldest, null);
+  }
+
+  Inbox(int capacity, boolean evictOldest, InboxStore store) {
+    this.slots = new AtomicReferenceArray<Message>(capacity);
+    this.capacity = capacity;
+    this.evictOldest = evictOldest;
+    this.store = store;
+    if (store != null) {
+      // Numbering carries on from the store, and the newest page goes in the ring
+      long count = store.count();
+      int n = (int) Math.min(Math.min(InboxStore.PAGE, capacity), count);
+      Message[] recent;
+      try {
+        recent = store.read(count - n, n);
+      } catch (IOException e) {
+        Log.log(Log.WARN, "Can't read the saved inbox: {}", e);
+        recent = new Message[0];
+        n = 0;
+      }
+      for (int i = 0; i < n; i++)
+        slots.set(slot(count - n + i), recent[i]);
+      first = count - n;
+      end = count;
+      viewedUpTo = count;
+    }
+  }
+
+  // Writer only. Returns false if the ring was full and msg was dropped.
+  boolean add(Message msg) {
+    long seq = end;
+    if (seq - first == capacity) {
+      if (!evictOldest) {
+        dropped++;
+        return false;
+      }
+      // Move first on before the slot is reused, so a reader that sees the
+      // new message there also sees that the old one is gone
+      first = seq - capacity + 1;
+      dropped++;
+    }
+    if (store != null) {
+      try {
+        store.append(msg);
+      } catch (IOException e) {
+        Log.log(Log.WARN, "Can't save message, it won't be there after a restart: {}", e); // still shown
+      }
+    }
+    Message old = slots.getAndSet(slot(seq), msg);
+    if (old != null)
+      live.decrementAndGet();
+    live.incrementAndGet();
+    end = seq + 1;
+    return true;
+  }
+
+  // The message with sequence number seq, null if it was evicted or deleted
+  Message get(long seq) {
+    if (seq >= end)
+      return null;
+    if (seq >= first) {
+      Message msg = slots.get(slot(seq));
+      if (seq >= first)
+        return msg;
+      // the writer reused the slot meanwhile, so it's an old one now
+    }
+    return stored(seq);
+  }
+
+  // UI only. Deletes seq, false if it was already gone.
+  boolean remove(long seq) {
+    Message msg = get(seq);
+    if (msg == null)
+      return false;
+    if (store != null) {
+      try {
+        store.delete(seq);
+      } catch (IOException e) {
+        Log.log(Log.WARN, "Can't delete saved message: {}", e);
+      }
+    }
+    if (seq >= first && slots.compareAndSet(slot(seq), msg, null))
+      live.decrementAndGet();
+    return true;
+  }
+
+  // The next message after seq that is still there, -1 if there isn't one
+  long newer(long seq) {
+    long end = this.end;
+    for (long s = Math.max(seq + 1, bottom()); s < end; s++) {
+      if (get(s) != null)
+        return s;
+    }
+    return -1;
+  }
+
+  // The message before seq that is still there, -1 if there isn't one
+  long older(long seq) {
+    long bottom = bottom();
+    for (long s = Math.min(seq, end) - 1; s >= bottom; s--) {
+      if (get(s) != null)
+        return s;
+    }
+    return -1;
+  }
+
+  long oldest() {
+    return newer(bottom() - 1);
+  }
+
+  long newest() {
+    return older(end);
+  }
+
+  // Where seq is counting from the oldest message, starting at 1
+  int position(long seq) {
+    if (store != null)
+      return (int) (seq + 1 - store.deletedBefore(seq + 1));
+    int n = 0;
+    for (long s = first; s <= seq && s < end; s++) {
+      if (get(s) != null)
+        n++;
+    }
+    return n;
+  }
+
+  // Messages in the inbox
+  int size() {
+    if (store != null)
+      return (int) (store.count() - store.deletedCount());
+    return live.get();
+  }
+
+  // Messages that came in since markViewed()
+  int unread() {
+    return (int) (end - Math.max(viewedUpTo, first));
+  }
+
+  // UI only. Everything in the inbox now counts as seen.
+  void markViewed() {
+    viewedUpTo = end;
+  }
+
+  // Messages thrown away because the inbox was full
+  long dropped() {
+    return dropped;
+  }
+
+  // Lowest sequence number get() can still find
+  private long bottom() {
+    return store != null ? 0 : first;
+  }
+
+  private Message stored(long seq) {
+    if (store == null || seq < 0)
+      return null;
+    try {
+      return store.get(seq);
+    } catch (IOException e) {
+      Log.log(Log.WARN, "Can't read saved message: {}", e);
+      return null;
+    }
+  }
+
+  private int slot(long seq) {
+    return (int) (seq % capacity);
+  }
+}
@@ -0,0 +1,192 @@
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * The handset's messages on disk, so they survive a reboot.
+ *
+ * Three files in dir:
+ *   inbox.dat  every message received, appended: length (int), payload (BINARY codec)
+ *   inbox.idx  where message n starts in inbox.dat, 8 bytes each, so finding one is a seek
+ *   inbox.del  numbers of the messages the user deleted, 8 bytes each
+ * A message's number here is its sequence number in the Inbox.
+ *
+ * Opening only reads the file sizes and inbox.del, so start up takes the
+ * same time however long the history is. Older messages are read a page
+ * at a time when the user scrolls back to them, and the last few pages
+ * read are kept.
+ *
+ * Both the network thread (append) and the UI (reads, delete) use it, so
+ * everything is synchronized; it's disk I/O anyway.
+ */
+class InboxStore {
+
+  static final int PAGE = 16; // messages read from disk at a time
+  private static final int CACHED_PAGES = 8;
+
+  private final RandomAccessFile data;
+  private final RandomAccessFile index;
+  private final RandomAccessFile deletions;
+  private long count; // messages stored
+  private long dataEnd; // where the next one goes in inbox.dat
+  private long[] deleted; // sorted
+  private int deletedCount;
+  private boolean broken = false; // an append failed, see append()
+
+  private final LinkedHashMap<Long, Message[]> pages = new LinkedHashMap<Long, Message[]>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<Long, Message[]> eldest) {
+      return size() > CACHED_PAGES;
+    }
+  };
+
+  InboxStore(File dir) throws IOException {
+    dir.mkdirs();
+    data = new RandomAccessFile(new File(dir, "inbox.dat"), "rw");
+    index = new RandomAccessFile(new File(dir, "inbox.idx"), "rw");
+    deletions = new RandomAccessFile(new File(dir, "inbox.del"), "rw");
+
+    // The data goes in before its index entry, so at worst a crash left a
+    // record without an entry (cut off below) or half an entry (ignored)
+    count = index.length() / 8;
+    dataEnd = 0;
+    if (count > 0) {
+      index.seek((count - 1) * 8);
+      long last = index.readLong();
+      int length = -1;
+      if (last + 4 <= data.length()) {
+        data.seek(last);
+        length = data.readInt();
+      }
+      if (length < 0 || last + 4 + length > data.length()) {
+        count--; // its data never made it, forget the entry too
+        dataEnd = last;
+      }
+      else
+        dataEnd = last + 4 + length;
+    }
+    index.setLength(count * 8);
+    data.setLength(dataEnd);
+
+    deletedCount = (int) (deletions.length() / 8);
+    deleted = new long[Math.max(16, deletedCount)];
+    byte[] bytes = new byte[deletedCount * 8];
+    deletions.readFully(bytes);
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    for (int i = 0; i < deletedCount; i++)
+      deleted[i] = buf.getLong();
+    Arrays.sort(deleted, 0, deletedCount);
+  }
+
+  // Messages stored, deleted ones included. The next one appended gets this number.
+  synchronized long count() {
+    return count;
+  }
+
+  synchronized int deletedCount() {
+    return deletedCount;
+  }
+
+  // Deleted messages numbered below seq
+  synchronized int deletedBefore(long seq) {
+    int i = Arrays.binarySearch(deleted, 0, deletedCount, seq);
+    return i >= 0 ? i : -i - 1;
+  }
+
+  /*
+   * Stores msg as number count(). Once an append has failed they all fail,
+   * so the numbers on disk never get out of step with the Inbox's; what
+   * was stored before stays readable.
+   */
+  synchronized void append(Message msg) throws IOException {
+    if (broken)
+      throw new IOException("Inbox store stopped after an earlier error");
+    broken = true;
+    byte[] payload = MessageCodec.BINARY.encode(msg);
+    ByteBuffer record = ByteBuffer.allocate(4 + payload.length);
+    record.putInt(payload.length).put(payload);
+    data.seek(dataEnd);
+    data.write(record.array());
+    index.seek(count * 8);
+    index.writeLong(dataEnd);
+    dataEnd += record.capacity();
+    pages.remove(count / PAGE); // a cached copy of this page doesn't have it
+    count++;
+    broken = false;
+  }
+
+  synchronized void delete(long seq) throws IOException {
+    if (seq < 0 || seq >= count || isDeleted(seq))
+      return;
+    deletions.seek((long) deletedCount * 8);
+    deletions.writeLong(seq);
+    if (deletedCount == deleted.length)
+      deleted = Arrays.copyOf(deleted, deleted.length * 2);
+    int at = deletedBefore(seq);
+    System.arraycopy(deleted, at, deleted, at + 1, deletedCount - at);
+    deleted[at] = seq;
+    deletedCount++;
+    Message[] page = pages.get(seq / PAGE);
+    if (page != null)
+      page[(int) (seq % PAGE)] = null;
+  }
+
+  // Message number seq, null if it was deleted (or there's no such message)
+  synchronized Message get(long seq) throws IOException {
+    if (seq < 0 || seq >= count)
+      return null;
+    Message[] page = pages.get(seq / PAGE);
+    if (page == null) {
+      page = read(seq / PAGE * PAGE, PAGE);
+      pages.put(seq / PAGE, page);
+    }
+    int i = (int) (seq % PAGE);
+    return i < page.length ? page[i] : null;
+  }
+
+  /*
+   * Reads messages from .. from + n - 1 (fewer if there aren't that many)
+   * with one read of the index and one of the data, deleted ones as null.
+   */
+  synchronized Message[] read(long from, int n) throws IOException {
+    n = (int) Math.max(0, Math.min(n, count - from));
+    Message[] msgs = new Message[n];
+    if (n == 0)
+      return msgs;
+    // One more offset than we need, it's where the last record ends
+    int offsets = (int) Math.min(n + 1, count - from);
+    byte[] idx = new byte[offsets * 8];
+    index.seek(from * 8);
+    index.readFully(idx);
+    ByteBuffer idxBuf = ByteBuffer.wrap(idx);
+    long start = idxBuf.getLong(0);
+    long end = offsets > n ? idxBuf.getLong(n * 8) : dataEnd;
+
+    byte[] bytes = new byte[(int) (end - start)];
+    data.seek(start);
+    data.readFully(bytes);
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    for (int i = 0; i < n; i++) {
+      if (isDeleted(from + i))
+        continue;
+      int at = (int) (idxBuf.getLong(i * 8) - start);
+      msgs[i] = MessageCodec.BINARY.decode(bytes, at + 4, buf.getInt(at));
+    }
+    return msgs;
+  }
+
+  void close() {
+    try {
+      data.close();
+      index.close();
+      deletions.close();
+    } catch (IOException e) {
+    }
+  }
+
+  private boolean isDeleted(long seq) {
+    return Arrays.binarySearch(deleted, 0, deletedCount, seq) >= 0;
+  }
+}
@@ -0,0 +1,163 @@
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Histogram of latencies in nanoseconds, laid out like HdrHistogram: one
+ * bucket per power of two, each split into SUB_BUCKETS linear steps, so
+ * any value is within about 1.5% of the bucket it lands in whether it is
+ * 2us or 20s. Fixed size (64 * SUB_BUCKETS counters), nothing is
+ * allocated per record().
+ *
+ * Any number of threads can record at once. Most samples land in the same
+ * few buckets, so each bucket is a LongAdder: threads that collide on one
+ * get cells of their own instead of fighting over a single counter, and
+ * the cells are only added up when a snapshot is taken. (A LongAdder
+ * makes its cells the first few times threads collide, not per record.)
+ */
+class LatencyHistogram {
+
+  private static final int SUB_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private final LongAdder[] counts = new LongAdder[64 * SUB_BUCKETS];
+
+  LatencyHistogram() {
+    for (int i = 0; i < counts.length; i++)
+      counts[i] = new LongAdder();
+  }
+
+  void record(long nanos) {
+    counts[index(Math.max(0, nanos))].increment();
+  }
+
+  long count() {
+    return count(snapshot());
+  }
+
+  // The value below which fraction (0..1) of the recorded values fall
+  long percentile(double fraction) {
+    return percentile(snapshot(), fraction);
+  }
+
+  // Several percentiles at once, all from the same copy of the counters
+  long[] percentiles(double... fractions) {
+    long[] c = snapshot();
+    long[] values = new long[fractions.length];
+    for (int i = 0; i < fractions.length; i++)
+      values[i] = percentile(c, fractions[i]);
+    return values;
+  }
+
+  long max() {
+    long[] c = snapshot();
+    for (int i = c.length - 1; i >= 0; i--) {
+      if (c[i] != 0)
+        return highest(i);
+    }
+    return 0;
+  }
+
+  double mean() {
+    long[] c = snapshot();
+    long n = 0;
+    double sum = 0;
+    for (int i = 0; i < c.length; i++) {
+      if (c[i] != 0) {
+        n += c[i];
+        sum += (double) c[i] * (lowest(i) + highest(i)) / 2;
+      }
+    }
+    return n == 0 ? 0 : sum / n;
+  }
+
+  // Adds everything recorded in other to this one
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      long c = other.counts[i].sum();
+      if (c != 0)
+        counts[i].add(c);
+    }
+  }
+
+  void reset() {
+    for (int i = 0; i < counts.length; i++)
+      counts[i].reset();
+  }
+
+  /*
+   * One line: count, mean and the usual percentiles in microseconds. All
+   * from one copy of the counters, so records that land meanwhile can't
+   * make p99.9 come out below p99.
+   */
+  public String toString() {
+    long[] c = snapshot();
+    long n = count(c);
+    double sum = 0;
+    long max = 0;
+    for (int i = 0; i < c.length; i++) {
+      if (c[i] != 0) {
+        sum += (double) c[i] * (lowest(i) + highest(i)) / 2;
+        max = highest(i);
+      }
+    }
+    return String.format("n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+        n, n == 0 ? 0 : sum / n / 1000, percentile(c, 0.5) / 1000.0, percentile(c, 0.9) / 1000.0,
+        percentile(c, 0.99) / 1000.0, percentile(c, 0.999) / 1000.0, max / 1000.0);
+  }
+
+  private long[] snapshot() {
+    long[] c = new long[counts.length];
+    for (int i = 0; i < c.length; i++)
+      c[i] = counts[i].sum();
+    return c;
+  }
+
+  private static long count(long[] c) {
+    long n = 0;
+    for (int i = 0; i < c.length; i++)
+      n += c[i];
+    return n;
+  }
+
+  private static long percentile(long[] c, double fraction) {
+    long total = count(c);
+    if (total == 0)
+      return 0;
+    long wanted = Math.max(1, (long) Math.ceil(total * fraction));
+    long seen = 0;
+    for (int i = 0; i < c.length; i++) {
+      seen += c[i];
+      if (seen >= wanted)
+        return highest(i);
+    }
+    return highest(c.length - 1);
+  }
+
+  /*
+   * Values below SUB_BUCKETS get a bucket each. Above that the top bit
+   * picks the power of two and the next SUB_BITS bits the step inside it.
+   */
+  private static int index(long v) {
+    if (v < SUB_BUCKETS)
+      return (int) v;
+    int top = 63 - Long.numberOfLeadingZeros(v);
+    int shift = top - SUB_BITS;
+    int sub = (int) (v >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long lowest(int index) {
+    if (index < SUB_BUCKETS)
+      return index;
+    int shift = index / SUB_BUCKETS - 1;
+    long sub = index % SUB_BUCKETS;
+    return (SUB_BUCKETS + sub) << shift;
+  }
+
+  private static long highest(int index) {
+    if (index < SUB_BUCKETS)
+      return index;
+    int shift = index / SUB_BUCKETS - 1;
+    return lowest(index) + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,26 @@
+
+/*
+ * A character LCD. PiLcd is the real HD44780 on the handset,
+ * SimulatedLcd keeps the characters in memory so the client can run
+ * anywhere. Everything on screen is drawn through an LcdFrame in front
+ * of one of these.
+ */
+interface LcdDisplay {
+
+  int rows();
+
+  int columns();
+
+  void clear();
+
+  // Moves the cursor, the next puts() starts here
+  void position(int x, int y);
+
+  void puts(String s);
+
+  // Blinking cursor on or off
+  void showCursor(boolean on);
+
+  // A whole frame has been drawn
+  void frameDone();
+}
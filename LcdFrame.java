@@ -0,0 +1,118 @@
+
+import java.util.Arrays;
+
+/*
+ * Off-screen copy of the LCD. The UI draws a whole frame into it with
+ * clear()/puts()/cursor() and then calls commit(), which compares it with
+ * what the display already shows and only sends the characters that
+ * changed. Nothing is cleared on the real display, so there is no flicker,
+ * and an unchanged frame costs nothing on the (slow) HD44780 bus.
+ */
+class LcdFrame {
+
+  final LcdDisplay lcd;
+  final int rows;
+  final int columns;
+  private final char[][] next; // what is being drawn
+  private final char[][] shown; // what the display has
+  private int cursorX = 0;
+  private int cursorY = 0;
+  private boolean cursorOn = false;
+  private boolean cursorShown = true; // unknown after lcdInit, so the first commit sets it
+
+  // Bus writes: a position command or a character each
+  private long writes = 0;
+  private long writesAvoided = 0;
+
+  LcdFrame(LcdDisplay lcd) {
+    this.lcd = lcd;
+    this.rows = lcd.rows();
+    this.columns = lcd.columns();
+    next = new char[rows][columns];
+    shown = new char[rows][columns];
+    for (int y = 0; y < rows; y++) {
+      Arrays.fill(next[y], ' ');
+      Arrays.fill(shown[y], ' ');
+    }
+    lcd.clear(); // so shown really is all spaces
+  }
+
+  // Blanks the frame being drawn, the display keeps its contents until commit()
+  void clear() {
+    for (int y = 0; y < rows; y++)
+      Arrays.fill(next[y], ' ');
+  }
+
+  // Writes s starting at column x of row y, anything past the end of the row is cut off
+  void puts(int x, int y, String s) {
+    if (y < 0 || y >= rows)
+      return;
+    for (int i = 0; i < s.length() && x + i < columns; i++) {
+      if (x + i >= 0)
+        next[y][x + i] = s.charAt(i);
+    }
+  }
+
+  // Where the cursor goes once the frame is committed
+  void cursor(int x, int y) {
+    cursorX = x;
+    cursorY = y;
+  }
+
+  // Blinking cursor on or off
+  void showCursor(boolean on) {
+    cursorOn = on;
+  }
+
+  /*
+   * Sends the changes to the display. Each run of changed characters costs
+   * one position command plus the characters; runs separated by a single
+   * unchanged character are sent as one, since that costs the same.
+   */
+  void commit() {
+    int sent = 0;
+    for (int y = 0; y < rows; y++) {
+      char[] want = next[y];
+      char[] have = shown[y];
+      int x = 0;
+      while (x < columns) {
+        if (want[x] == have[x]) {
+          x++;
+          continue;
+        }
+        int start = x;
+        int end = x + 1; // one past the last changed character
+        for (x = end; x < columns; x++) {
+          if (want[x] != have[x])
+            end = x + 1;
+          else if (x - end >= 1)
+            break;
+        }
+        lcd.position(start, y);
+        lcd.puts(new String(want, start, end - start));
+        System.arraycopy(want, start, have, start, end - start);
+        sent += 1 + end - start;
+        x = end;
+      }
+    }
+    // Drawing the frame straight to the display would have been a position and a full row for every row
+    writes += sent;
+    writesAvoided += rows * (1 + columns) - sent;
+
+    if (cursorOn != cursorShown) {
+      lcd.showCursor(cursorOn);
+      cursorShown = cursorOn;
+    }
+    lcd.position(cursorX, cursorY);
+    lcd.frameDone();
+  }
+
+  long writes() {
+    return writes;
+  }
+
+  // How many bus writes commit() has saved compared to redrawing every row
+  long writesAvoided() {
+    return writesAvoided;
+  }
+}
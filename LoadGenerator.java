@@ -0,0 +1,222 @@
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Load test for a Server: lots of headless handsets in one JVM, each a
+ * real Client with its own NetConnection (so INIT, CLIENT_LIST updates,
+ * ACKs, heartbeats and reconnects all happen like on a Pi), just without
+ * the LCD and buttons.
+ *
+ * Every handset sends MESSAGEs at --rate per second, either to a random
+ * handset off its client list (direct) or to its channel of --group
+ * handsets (channel, so each send fans out to group - 1). The text starts
+ * with the send time, so whoever gets it can record how long it took.
+ * --churn replaces that fraction of the handsets every second with new
+ * ones, like handsets coming and going.
+ *
+ * Prints sends, receives and latency every second, and totals at the end.
+ *
+ * Usage: java LoadGenerator [--host <ip>] [--port <port>] [--clients <n>] [--rate <msgs/s each>]
+ *                           [--payload <chars>] [--duration <s>] [--churn <fraction/s>]
+ *                           [--pattern direct | channel] [--group <n>]
+ *                           [--codec binary | framed | plain] [--senders <threads>]
+ * Compile it with the client sources.
+ */
+class LoadGenerator {
+
+  String host = "127.0.0.1";
+  int port = 5555;
+  int clients = 100;
+  double rate = 1;
+  int payload = 64;
+  int seconds = 30;
+  double churn = 0;
+  boolean channels = false; // --pattern channel
+  int group = 10;
+  MessageCodec codec = MessageCodec.BINARY;
+  int senders = 4;
+
+  private AtomicReferenceArray<Client> handsets;
+  private String padding;
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder replaced = new LongAdder();
+  private final LatencyHistogram latency = new LatencyHistogram(); // this second
+  private final LatencyHistogram overall = new LatencyHistogram();
+
+  void run() throws InterruptedException {
+    Log.setLevel(Log.OFF); // thousands of clients logging every connect and message would drown the report
+    StringBuilder pad = new StringBuilder(" ");
+    while (pad.length() < payload - 19) // a nanoTime is up to 19 digits
+      pad.append('x');
+    padding = pad.toString();
+
+    System.out.println("Load on " + host + ":" + port + ": " + clients + " clients, " + rate + " msgs/s each, "
+        + payload + " chars, " + (channels ? "channels of " + group : "direct") + ", churn " + churn + "/s");
+    handsets = new AtomicReferenceArray<Client>(clients);
+    for (int i = 0; i < clients; i++) {
+      handsets.set(i, handset(i));
+      if (i % 50 == 49)
+        Thread.sleep(10); // don't overflow the server's accept backlog
+    }
+
+    ScheduledExecutorService sending = Executors.newScheduledThreadPool(senders);
+    long period = (long) (1e9 / rate);
+    for (int i = 0; i < clients; i++) {
+      final int slot = i;
+      long start = ThreadLocalRandom.current().nextLong(period); // spread them out
+      sending.scheduleAtFixedRate(() -> send(slot), start, period, TimeUnit.NANOSECONDS);
+    }
+
+    double toReplace = 0;
+    long lastSent = 0;
+    long lastReceived = 0;
+    for (int s = 1; s <= seconds; s++) {
+      Thread.sleep(1000);
+      toReplace += churn * clients;
+      for (; toReplace >= 1; toReplace--)
+        replace(ThreadLocalRandom.current().nextInt(clients));
+      long nowSent = sent.sum();
+      long nowReceived = received.sum();
+      System.out.println(String.format("%4ds %5d/%d connected %8d sent/s %8d received/s  %s",
+          s, connected(), clients, nowSent - lastSent, nowReceived - lastReceived, latency));
+      overall.add(latency);
+      latency.reset();
+      lastSent = nowSent;
+      lastReceived = nowReceived;
+    }
+    sending.shutdownNow();
+
+    long delivered = 0;
+    long failed = 0;
+    long waiting = 0;
+    for (int i = 0; i < clients; i++) {
+      Client.NetConnection connection = handsets.get(i).connection;
+      delivered += connection.delivered();
+      failed += connection.failed();
+      waiting += connection.inFlight();
+      connection.shutdown();
+    }
+    System.out.println(String.format("Total: %d sent (%.0f/s), %d received (%.0f/s), %d clients replaced",
+        sent.sum(), (double) sent.sum() / seconds, received.sum(), (double) received.sum() / seconds, replaced.sum()));
+    System.out.println("ACKed " + delivered + ", NACKed " + failed + ", still unACKed " + waiting
+        + " (the clients replaced along the way not counted)");
+    System.out.println("Latency: " + overall);
+  }
+
+  private Client handset(int slot) {
+    Client handset = new Client(port, host, codec, 16, true, null);
+    handset.onMessage = this::received;
+    if (channels)
+      handset.connection.subscribe(channel(slot)); // goes out once it's connected
+    handset.connection.start();
+    return handset;
+  }
+
+  private String channel(int slot) {
+    return "load-" + slot / group;
+  }
+
+  // Called on a handset's network thread
+  private void received(Message msg) {
+    int space = msg.message.indexOf(' ');
+    try {
+      long sentAt = Long.parseLong(space < 0 ? msg.message : msg.message.substring(0, space));
+      latency.record(System.nanoTime() - sentAt);
+      received.increment();
+    } catch (NumberFormatException e) {
+      // not one of ours
+    }
+  }
+
+  private void send(int slot) {
+    Client handset = handsets.get(slot);
+    Client.NetConnection connection = handset.connection;
+    if (!connection.connected)
+      return; // it would only queue up for the reconnect
+    String text = System.nanoTime() + padding;
+    if (channels) {
+      connection.sendToChannel(channel(slot), text);
+    } else {
+      ArrayList<Integer> peers = handset.connectedClients();
+      if (peers.isEmpty())
+        return;
+      Message msg = new Message();
+      msg.messageType = "MESSAGE";
+      msg.senderID = connection.ID;
+      msg.receiverID = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+      msg.message = text;
+      connection.sendMessage(msg);
+    }
+    sent.increment();
+  }
+
+  // Hangs up the handset in slot for good and puts a new one there
+  private void replace(int slot) {
+    Client old = handsets.getAndSet(slot, handset(slot));
+    old.connection.shutdown();
+    replaced.increment();
+  }
+
+  private int connected() {
+    int n = 0;
+    for (int i = 0; i < clients; i++) {
+      if (handsets.get(i).connection.connected)
+        n++;
+    }
+    return n;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    LoadGenerator load = new LoadGenerator();
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+      case "--host":
+        load.host = args[++i];
+        break;
+      case "--port":
+        load.port = Integer.parseInt(args[++i]);
+        break;
+      case "--clients":
+        load.clients = Integer.parseInt(args[++i]);
+        break;
+      case "--rate":
+        load.rate = Double.parseDouble(args[++i]);
+        break;
+      case "--payload":
+        load.payload = Integer.parseInt(args[++i]);
+        break;
+      case "--duration":
+        load.seconds = Integer.parseInt(args[++i]);
+        break;
+      case "--churn":
+        load.churn = Double.parseDouble(args[++i]);
+        break;
+      case "--pattern":
+        load.channels = args[++i].equals("channel");
+        break;
+      case "--group":
+        load.group = Integer.parseInt(args[++i]);
+        break;
+      case "--codec":
+        String codec = args[++i];
+        load.codec = codec.equals("plain") ? null : codec.equals("framed") ? MessageCodec.SERIALIZED : MessageCodec.BINARY;
+        break;
+      case "--senders":
+        load.senders = Integer.parseInt(args[++i]);
+        break;
+      default:
+        System.err.println("Unknown option " + args[i]);
+        System.exit(1);
+      }
+    }
+    load.run();
+    System.exit(0);
+  }
+}
@@ -0,0 +1,241 @@
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Leveled logging that never makes the caller wait on System.out.
+ *
+ * A log call below the current level is one volatile read and a return;
+ * there are overloads for long arguments so nothing gets boxed and no
+ * varargs array is made. A call that passes the level claims a slot in a
+ * ring buffer with one CAS, copies its arguments in, and carries on. The
+ * "log" thread does the formatting and the actual printing.
+ *
+ * "{}" in a format is replaced by the next argument. Object arguments are
+ * turned into text on the log thread, so only pass ones that won't change
+ * afterwards (Strings, snapshots, lists that are replaced not changed).
+ *
+ * If the ring is full the line is dropped rather than block a reader
+ * thread; the log thread says how many went missing.
+ */
+class Log {
+
+  static final int TRACE = 0;
+  static final int DEBUG = 1;
+  static final int INFO = 2;
+  static final int WARN = 3;
+  static final int ERROR = 4;
+  static final int OFF = 5;
+
+  private static final String[] NAMES = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR"};
+  private static final int CAPACITY = 8192; // a power of two
+  private static final int MASK = CAPACITY - 1;
+  private static final int IDLE_SPINS = 50; // short naps (about 25ms in all) before the log thread sleeps for good
+
+  private static volatile int level = INFO;
+
+  // One log line waiting to be written. Only the thread that claimed it fills it in.
+  private static final class Entry {
+    long time;
+    int level;
+    String thread;
+    String format;
+    int args;
+    Object a, b;
+    long x, y;
+    boolean aIsLong, bIsLong;
+  }
+
+  private static final Entry[] ring = new Entry[CAPACITY];
+  // published.get(i) == sequence once the entry for that sequence is filled in
+  private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+  private static final AtomicLong claimed = new AtomicLong(0); // next sequence to hand out
+  private static volatile long consumed = 0; // everything below this has been written
+  private static final LongAdder dropped = new LongAdder();
+  private static volatile Thread writer;
+  private static volatile boolean sleeping = false; // the log thread is parked until someone unparks it
+
+  static {
+    for (int i = 0; i < CAPACITY; i++) {
+      ring[i] = new Entry();
+      published.set(i, -1);
+    }
+  }
+
+  static void setLevel(int newLevel) {
+    level = newLevel;
+  }
+
+  // trace, debug, info, warn, error or off
+  static void setLevel(String name) {
+    if (name.equalsIgnoreCase("off")) {
+      level = OFF;
+      return;
+    }
+    for (int i = 0; i < NAMES.length; i++) {
+      if (NAMES[i].equalsIgnoreCase(name)) {
+        level = i;
+        return;
+      }
+    }
+    throw new IllegalArgumentException("No log level " + name);
+  }
+
+  static boolean enabled(int at) {
+    return at >= level;
+  }
+
+  static void log(int at, String message) {
+    if (at >= level)
+      append(at, message, 0, null, 0, false, null, 0, false);
+  }
+
+  static void log(int at, String format, long a) {
+    if (at >= level)
+      append(at, format, 1, null, a, true, null, 0, false);
+  }
+
+  static void log(int at, String format, Object a) {
+    if (at >= level)
+      append(at, format, 1, a, 0, false, null, 0, false);
+  }
+
+  static void log(int at, String format, long a, long b) {
+    if (at >= level)
+      append(at, format, 2, null, a, true, null, b, true);
+  }
+
+  static void log(int at, String format, long a, Object b) {
+    if (at >= level)
+      append(at, format, 2, null, a, true, b, 0, false);
+  }
+
+  static void log(int at, String format, Object a, Object b) {
+    if (at >= level)
+      append(at, format, 2, a, 0, false, b, 0, false);
+  }
+
+  /*
+   * Waits up to timeoutMillis for everything logged so far to be written.
+   * For shutdown, the log thread is a daemon and won't hold the JVM open.
+   */
+  static void flush(long timeoutMillis) {
+    long target = claimed.get();
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (consumed < target && writer != null && System.currentTimeMillis() < deadline)
+      LockSupport.parkNanos(1000000);
+  }
+
+  private static void append(int at, String format, int args, Object a, long x, boolean aIsLong,
+      Object b, long y, boolean bIsLong) {
+    if (writer == null)
+      startWriter();
+    long seq;
+    do {
+      seq = claimed.get();
+      if (seq - consumed >= CAPACITY) {
+        dropped.increment();
+        return;
+      }
+    } while (!claimed.compareAndSet(seq, seq + 1));
+
+    Entry e = ring[(int) seq & MASK];
+    e.time = System.currentTimeMillis();
+    e.level = at;
+    e.thread = Thread.currentThread().getName();
+    e.format = format;
+    e.args = args;
+    e.a = a;
+    e.x = x;
+    e.aIsLong = aIsLong;
+    e.b = b;
+    e.y = y;
+    e.bIsLong = bIsLong;
+    published.set((int) seq & MASK, seq); // volatile write, the entry is visible to the log thread after this
+    if (sleeping)
+      LockSupport.unpark(writer);
+  }
+
+  private static synchronized void startWriter() {
+    if (writer != null)
+      return;
+    Thread t = new Thread(Log::writeLoop, "log");
+    t.setDaemon(true);
+    t.start();
+    writer = t;
+  }
+
+  private static void writeLoop() {
+    StringBuilder line = new StringBuilder(256);
+    SimpleDateFormat clock = new SimpleDateFormat("HH:mm:ss.SSS");
+    Date date = new Date();
+    long next = consumed;
+    long reportedDrops = 0;
+    int idle = 0;
+    while (true) {
+      int i = (int) next & MASK;
+      if (published.get(i) != next) {
+        // Nothing yet: flush what we wrote, back off a little at a time for a
+        // while (lines tend to come in bursts), then sleep until append wakes us
+        if (idle++ == 0)
+          System.out.flush();
+        if (idle < IDLE_SPINS) {
+          LockSupport.parkNanos(idle * 20000L);
+          continue;
+        }
+        sleeping = true;
+        // Look again after saying so, or a line published just before would wait for the next one
+        if (published.get(i) != next)
+          LockSupport.park();
+        sleeping = false;
+        continue;
+      }
+      idle = 0;
+      Entry e = ring[i];
+      date.setTime(e.time);
+      line.setLength(0);
+      line.append(clock.format(date)).append(' ').append(NAMES[e.level]).append(" [").append(e.thread).append("] ");
+      format(line, e);
+      e.a = null; // don't keep messages alive in the ring
+      e.b = null;
+      consumed = ++next;
+      PrintStream out = System.out; // whatever it is now, so System.setOut still works
+      out.println(line);
+
+      long drops = dropped.sum();
+      if (drops != reportedDrops) {
+        out.println("(" + (drops - reportedDrops) + " log lines dropped, the log couldn't keep up)");
+        reportedDrops = drops;
+      }
+    }
+  }
+
+  private static void format(StringBuilder line, Entry e) {
+    String format = e.format;
+    int arg = 0;
+    int from = 0;
+    int at;
+    while (arg < e.args && (at = format.indexOf("{}", from)) >= 0) {
+      line.append(format, from, at);
+      if (arg == 0) {
+        if (e.aIsLong)
+          line.append(e.x);
+        else
+          line.append(e.a);
+      } else {
+        if (e.bIsLong)
+          line.append(e.y);
+        else
+          line.append(e.b);
+      }
+      arg++;
+      from = at + 2;
+    }
+    line.append(format, from, format.length());
+  }
+}
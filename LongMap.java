@@ -0,0 +1,149 @@
+
+import java.util.Arrays;
+
+/*
+ * Hash map from a primitive long to V. Keys live in a long[] (open
+ * addressing, linear probing), so nothing is boxed on the way in or out,
+ * which matters when thousands of messages are being tracked by ID.
+ *
+ * An empty slot is one whose value is null, so null values can't be
+ * stored. Not thread safe.
+ */
+class LongMap<V> {
+
+  private long[] keys;
+  private Object[] values;
+  private int size = 0;
+
+  LongMap() {
+    this(16);
+  }
+
+  LongMap(int expected) {
+    int capacity = 8;
+    while (capacity < expected * 2)
+      capacity <<= 1;
+    keys = new long[capacity];
+    values = new Object[capacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(long key) {
+    int i = find(key);
+    return i < 0 ? null : (V) values[i];
+  }
+
+  boolean containsKey(long key) {
+    return find(key) >= 0;
+  }
+
+  // Returns what key was mapped to before, or null
+  @SuppressWarnings("unchecked")
+  V put(long key, V value) {
+    if (value == null)
+      throw new NullPointerException("LongMap can't hold null values");
+    int mask = keys.length - 1;
+    int i = slot(key);
+    while (values[i] != null) {
+      if (keys[i] == key) {
+        V old = (V) values[i];
+        values[i] = value;
+        return old;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size * 2 > keys.length)
+      grow();
+    return null;
+  }
+
+  // Returns what key was mapped to, or null if it wasn't there
+  @SuppressWarnings("unchecked")
+  V remove(long key) {
+    int i = find(key);
+    if (i < 0)
+      return null;
+    V old = (V) values[i];
+    // Pull later entries of the same run back into the gap so lookups
+    // never stop early at it (no tombstones needed)
+    int mask = keys.length - 1;
+    int gap = i;
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (values[j] == null)
+        break;
+      int home = slot(keys[j]);
+      // Move j to the gap unless its home slot is between the gap and j
+      if (((j - home) & mask) >= ((j - gap) & mask)) {
+        keys[gap] = keys[j];
+        values[gap] = values[j];
+        gap = j;
+      }
+    }
+    values[gap] = null;
+    size--;
+    return old;
+  }
+
+  void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  /*
+   * For walking the map: slots run from 0 to capacity() - 1, and the ones
+   * with valueAt(i) == null are empty. Don't put or remove while walking.
+   */
+  int capacity() {
+    return keys.length;
+  }
+
+  long keyAt(int i) {
+    return keys[i];
+  }
+
+  @SuppressWarnings("unchecked")
+  V valueAt(int i) {
+    return (V) values[i];
+  }
+
+  private int find(long key) {
+    int mask = keys.length - 1;
+    int i = slot(key);
+    while (values[i] != null) {
+      if (keys[i] == key)
+        return i;
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L; // spread sequential IDs over the table
+    return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new Object[oldValues.length * 2];
+    int mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] == null)
+        continue;
+      int j = slot(oldKeys[i]);
+      while (values[j] != null)
+        j = (j + 1) & mask;
+      keys[j] = oldKeys[i];
+      values[j] = oldValues[i];
+    }
+  }
+}
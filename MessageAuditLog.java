@@ -0,0 +1,274 @@
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only audit log of every Message the server routes or keeps for
+ * an offline client: a record of what went through, for looking back at
+ * afterwards (run this class to print it). Nothing is ever delivered from
+ * it. Client IDs start again from 1 every run, so after a restart nobody
+ * could say whose an old message would be.
+ *
+ * The log is a series of fixed size segment files in dir, each one memory
+ * mapped. Appending is a copy into the mapping, so there is no system call
+ * per message; the OS writes the pages back on its own. How often we make
+ * it do that (force) is the sync policy: after every append, every
+ * syncMillis from a background thread, or never. Only the newest
+ * maxSegments files are kept.
+ *
+ * Record layout: length (int), CRC32 of the payload (int), payload (the
+ * BINARY codec). A zero length marks the end of a segment. The length is
+ * written last, so a record that was only half written when we died is
+ * read as the end.
+ */
+class MessageAuditLog {
+
+    static final int SYNC_ALWAYS = 0;
+    static final int SYNC_NEVER = -1;
+
+    private static final int HEADER = 8;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final int syncMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer segment;
+    private FileChannel channel;
+    private long segmentNumber;
+    private long appended = 0;
+    private Thread syncer;
+    private volatile boolean closed = false;
+
+    /*
+     * Opens the log in dir, carrying on at the end of the newest segment
+     * if there is one. syncMillis is SYNC_ALWAYS, SYNC_NEVER or an interval.
+     */
+    MessageAuditLog(File dir, int segmentBytes, int maxSegments, int syncMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.syncMillis = syncMillis;
+        dir.mkdirs();
+
+        long[] existing = segmentNumbers(dir);
+        if (existing.length == 0) {
+            openSegment(1);
+        } else {
+            openSegment(existing[existing.length - 1]);
+            while (nextRecord(segment) != null)
+                ;
+        }
+
+        if (syncMillis > 0) {
+            syncer = new Thread(this::syncLoop, "audit-log-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    // Adds msg to the end of the log
+    void append(Message msg) throws IOException {
+        byte[] payload = MessageCodec.BINARY.encode(msg);
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            // Always leave room for the zero length that ends the segment
+            if (segment.remaining() < HEADER + payload.length + 4) {
+                if (HEADER + payload.length + 4 > segmentBytes)
+                    throw new IOException("Message too big for the audit log");
+                rotate();
+            }
+            int start = segment.position();
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            segment.position(start + HEADER);
+            segment.put(payload);
+            segment.putInt(start + 4, (int) crc.getValue());
+            segment.putInt(start, payload.length);
+            appended++;
+            if (syncMillis == SYNC_ALWAYS)
+                segment.force(start, HEADER + payload.length); // just this record's pages
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Hands every record in the log in dir, oldest first, to handler. Only
+     * reads the files, so it is best done on a log nobody is appending to.
+     */
+    static void read(File dir, Consumer<Message> handler) throws IOException {
+        for (long n : segmentNumbers(dir)) {
+            File f = segmentFile(dir, n);
+            byte[] bytes = readFile(f);
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            Message msg;
+            while ((msg = nextRecord(buf)) != null)
+                handler.accept(msg);
+        }
+    }
+
+    // Messages appended since this log was opened
+    long appended() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Forces everything out (unless the policy is never) and stops appending
+    void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            if (syncMillis != SYNC_NEVER)
+                segment.force();
+            channel.close();
+        } catch (IOException e) {
+        } finally {
+            lock.unlock();
+        }
+        if (syncer != null)
+            syncer.interrupt();
+    }
+
+    private void syncLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(syncMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            MappedByteBuffer current;
+            lock.lock();
+            try {
+                current = segment;
+            } finally {
+                lock.unlock();
+            }
+            // Outside the lock, appends carry on while the pages are written
+            current.force();
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (syncMillis != SYNC_NEVER)
+            segment.force();
+        channel.close();
+        openSegment(segmentNumber + 1);
+
+        long[] all = segmentNumbers(dir);
+        for (int i = 0; i < all.length - maxSegments; i++)
+            segmentFile(dir, all[i]).delete();
+    }
+
+    private void openSegment(long n) throws IOException {
+        File f = segmentFile(dir, n);
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        try {
+            long size = Math.max(file.length(), segmentBytes);
+            channel = file.getChannel();
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        segmentNumber = n;
+    }
+
+    /*
+     * Reads the record at buf's position and moves past it. Returns null,
+     * leaving the position alone, at the end of the segment or at a record
+     * that doesn't check out.
+     */
+    private static Message nextRecord(ByteBuffer buf) {
+        int start = buf.position();
+        if (buf.remaining() < HEADER)
+            return null;
+        int length = buf.getInt(start);
+        if (length <= 0 || length > buf.remaining() - HEADER)
+            return null;
+        byte[] payload = new byte[length];
+        buf.position(start + HEADER);
+        buf.get(payload);
+        CRC32 check = new CRC32();
+        check.update(payload, 0, length);
+        Message msg = null;
+        if ((int) check.getValue() == buf.getInt(start + 4)) {
+            try {
+                msg = MessageCodec.BINARY.decode(payload, 0, length);
+            } catch (IOException e) {
+            }
+        }
+        if (msg == null)
+            buf.position(start);
+        return msg;
+    }
+
+    // Still named after the journal this used to be, so logs from then are read too
+    private static File segmentFile(File dir, long n) {
+        return new File(dir, String.format("journal-%08d.log", n));
+    }
+
+    // Numbers of the segments on disk, oldest first
+    private static long[] segmentNumbers(File dir) {
+        String[] names = dir.list();
+        ArrayList<Long> numbers = new ArrayList<Long>();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("journal-") && name.endsWith(".log")) {
+                    try {
+                        numbers.add(Long.parseLong(name.substring(8, name.length() - 4)));
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        }
+        long[] sorted = new long[numbers.size()];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = numbers.get(i);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            byte[] bytes = new byte[(int) f.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Prints the log in dir, one message a line, oldest first.
+     *
+     * Usage: java MessageAuditLog <dir>
+     * Compile it with the server sources.
+     */
+    public static void main(String[] args) throws IOException {
+        final long[] count = new long[1];
+        read(new File(args[0]), msg -> {
+            count[0]++;
+            System.out.println(msg.senderID + " -> " + (msg.channel != null ? "#" + msg.channel : msg.receiverID)
+                    + (msg.messageID != 0 ? " (" + msg.messageID + ")" : "") + ": " + msg.message);
+        });
+        System.out.println(count[0] + " messages");
+    }
+}
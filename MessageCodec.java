@@ -0,0 +1,266 @@
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/*
+ * Turns a Message into the payload of one frame and back again.
+ * Which codec a framed connection uses is picked in the hello
+ * (see MessageFrames.handshake / acceptHello).
+ */
+abstract class MessageCodec {
+
+  static final MessageCodec SERIALIZED = new SerializedCodec();
+  static final MessageCodec BINARY = new BinaryCodec();
+
+  final byte id;
+
+  MessageCodec(byte id) {
+    this.id = id;
+  }
+
+  abstract byte[] encode(Message msg) throws IOException;
+
+  abstract Message decode(byte[] buf, int offset, int length) throws IOException;
+
+  // Returns the codec with the given id, or null if we don't know it
+  static MessageCodec forId(byte id) {
+    switch (id) {
+    case 1:
+      return SERIALIZED;
+    case 2:
+      return BINARY;
+    default:
+      return null;
+    }
+  }
+
+  /*
+   * Plain Java serialization, one stream per message so there are no
+   * back references between frames.
+   */
+  static class SerializedCodec extends MessageCodec {
+    SerializedCodec() {
+      super((byte) 1);
+    }
+
+    byte[] encode(Message msg) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(msg);
+      out.close();
+      return bytes.toByteArray();
+    }
+
+    Message decode(byte[] buf, int offset, int length) throws IOException {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buf, offset, length));
+      try {
+        return (Message) in.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /*
+   * Compact binary layout:
+   *   type tag       1 byte (0 = unknown type, followed by the type name)
+   *   senderID       varint
+   *   receiverID     varint
+   *   message        varint (length + 1, 0 = null) then UTF-8 bytes
+   *   clientList     varint (count + 1, 0 = null) then one varint per ID
+   *   listVersion    varint (64 bit), left off by older senders
+   *   token          varint (64 bit), left off by older senders
+   *   messageID      varint (64 bit), left off by older senders
+   *   channel        varint (length + 1, 0 = null) then UTF-8 bytes, left off by older senders
+   * A 40 character chat line comes out around 50 bytes.
+   */
+  static class BinaryCodec extends MessageCodec {
+
+    // Index in this array is the tag on the wire. PING/PONG, ACK/NACK and
+    // SUBSCRIBE/UNSUBSCRIBE aren't in it on purpose: sent by name, a server that predates them
+    // just ignores them instead of failing to decode the frame.
+    static final String[] TYPES = {null, "INIT", "MESSAGE", "CLIENT_LIST", "CLIENT_JOIN", "CLIENT_LEAVE"};
+
+    BinaryCodec() {
+      super((byte) 2);
+    }
+
+    static int tagFor(String type) {
+      for (int i = 1; i < TYPES.length; i++) {
+        if (TYPES[i].equals(type))
+          return i;
+      }
+      return 0;
+    }
+
+    static int varintSize(int value) {
+      return varlongSize(value & 0xFFFFFFFFL);
+    }
+
+    static int varlongSize(long value) {
+      int size = 1;
+      while ((value & ~0x7FL) != 0) {
+        value >>>= 7;
+        size++;
+      }
+      return size;
+    }
+
+    static int putVarint(byte[] buf, int pos, int value) {
+      return putVarlong(buf, pos, value & 0xFFFFFFFFL);
+    }
+
+    static int putVarlong(byte[] buf, int pos, long value) {
+      while ((value & ~0x7FL) != 0) {
+        buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buf[pos++] = (byte) value;
+      return pos;
+    }
+
+    static int stringSize(byte[] utf8) {
+      return utf8 == null ? 1 : varintSize(utf8.length + 1) + utf8.length;
+    }
+
+    static int putString(byte[] buf, int pos, byte[] utf8) {
+      if (utf8 == null)
+        return putVarint(buf, pos, 0);
+      pos = putVarint(buf, pos, utf8.length + 1);
+      System.arraycopy(utf8, 0, buf, pos, utf8.length);
+      return pos + utf8.length;
+    }
+
+    byte[] encode(Message msg) throws IOException {
+      int tag = msg.messageType == null ? 0 : tagFor(msg.messageType);
+      byte[] typeName = tag == 0 && msg.messageType != null ? msg.messageType.getBytes(StandardCharsets.UTF_8) : null;
+      byte[] body = msg.message == null ? null : msg.message.getBytes(StandardCharsets.UTF_8);
+      byte[] channel = msg.channel == null ? null : msg.channel.getBytes(StandardCharsets.UTF_8);
+
+      // Work out the exact size first so there is only one allocation
+      int size = 1;
+      if (tag == 0)
+        size += stringSize(typeName);
+      size += varintSize(msg.senderID) + varintSize(msg.receiverID) + stringSize(body);
+      if (msg.clientList == null) {
+        size += 1;
+      } else {
+        size += varintSize(msg.clientList.size() + 1);
+        for (int i = 0; i < msg.clientList.size(); i++)
+          size += varintSize(msg.clientList.get(i));
+      }
+      size += varlongSize(msg.listVersion) + varlongSize(msg.token) + varlongSize(msg.messageID);
+      if (channel != null)
+        size += stringSize(channel);
+
+      byte[] buf = new byte[size];
+      int pos = 0;
+      buf[pos++] = (byte) tag;
+      if (tag == 0)
+        pos = putString(buf, pos, typeName);
+      pos = putVarint(buf, pos, msg.senderID);
+      pos = putVarint(buf, pos, msg.receiverID);
+      pos = putString(buf, pos, body);
+      if (msg.clientList == null) {
+        pos = putVarint(buf, pos, 0);
+      } else {
+        pos = putVarint(buf, pos, msg.clientList.size() + 1);
+        for (int i = 0; i < msg.clientList.size(); i++)
+          pos = putVarint(buf, pos, msg.clientList.get(i));
+      }
+      pos = putVarlong(buf, pos, msg.listVersion);
+      pos = putVarlong(buf, pos, msg.token);
+      pos = putVarlong(buf, pos, msg.messageID);
+      if (channel != null) // most messages have none, so leaving it off saves the byte
+        pos = putString(buf, pos, channel);
+      return buf;
+    }
+
+    Message decode(byte[] buf, int offset, int length) throws IOException {
+      Reader r = new Reader(buf, offset, offset + length);
+      Message msg = new Message();
+      int tag = r.nextByte() & 0xFF;
+      if (tag == 0)
+        msg.messageType = r.nextString();
+      else if (tag < TYPES.length)
+        msg.messageType = TYPES[tag];
+      else
+        throw new IOException("Unknown type tag " + tag);
+      msg.senderID = r.nextVarint();
+      msg.receiverID = r.nextVarint();
+      msg.message = r.nextString();
+      int count = r.nextVarint();
+      if (count > 0) {
+        count--;
+        if (count > length)
+          throw new IOException("Bad client list length " + count);
+        msg.clientList = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++)
+          msg.clientList.add(r.nextVarint());
+      }
+      if (r.pos < r.end)
+        msg.listVersion = r.nextVarlong();
+      if (r.pos < r.end)
+        msg.token = r.nextVarlong();
+      if (r.pos < r.end)
+        msg.messageID = r.nextVarlong();
+      if (r.pos < r.end)
+        msg.channel = r.nextString();
+      return msg;
+    }
+
+    // Cursor over one payload, throws instead of reading past the end
+    static class Reader {
+      byte[] buf;
+      int pos;
+      int end;
+
+      Reader(byte[] buf, int pos, int end) {
+        this.buf = buf;
+        this.pos = pos;
+        this.end = end;
+      }
+
+      byte nextByte() throws IOException {
+        if (pos >= end)
+          throw new EOFException("Truncated message");
+        return buf[pos++];
+      }
+
+      int nextVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+          byte b = nextByte();
+          value |= (b & 0x7F) << shift;
+          if ((b & 0x80) == 0)
+            return value;
+        }
+        throw new IOException("Varint too long");
+      }
+
+      long nextVarlong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+          byte b = nextByte();
+          value |= (long) (b & 0x7F) << shift;
+          if ((b & 0x80) == 0)
+            return value;
+        }
+        throw new IOException("Varint too long");
+      }
+
+      String nextString() throws IOException {
+        int length = nextVarint();
+        if (length == 0)
+          return null;
+        length--;
+        if (length < 0 || length > end - pos)
+          throw new EOFException("Truncated message");
+        String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return s;
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/*
+ * Length-prefixed framing for Message objects.
+ *
+ * The legacy protocol is one long ObjectOutputStream per socket, which can
+ * only be read by a thread blocking in readObject(). A framed connection
+ * starts with a 5 byte hello (magic + codec id and flags, plus an 8 byte
+ * session token when the client is resuming) and after that every Message
+ * is sent as a 4 byte big-endian length followed by that many payload bytes,
+ * so a selector thread can tell when a whole message has arrived. What the
+ * payload looks like is up to the MessageCodec the two ends agreed on.
+ *
+ * Used by both Server and Client, so it only touches the fields that both
+ * copies of Message have.
+ */
+class MessageFrames {
+
+  // "RPTC" - never collides with the 0xACED that starts a serialization stream
+  static final byte[] MAGIC = {'R', 'P', 'T', 'C'};
+  static final int HELLO_LENGTH = MAGIC.length + 1;
+
+  // Set in the codec byte of a client hello when a session token follows it
+  static final int RESUME_FLAG = 0x80;
+
+  // Set in the codec byte of a client hello when the client answers PINGs, so the server pings it from the start
+  static final int HEARTBEAT_FLAG = 0x40;
+
+  // Set in the codec byte of a client hello when the client ACKs the MESSAGEs it gets, so the server doesn't have to
+  static final int ACK_FLAG = 0x20;
+
+  // Frames bigger than this are treated as a broken connection
+  static final int MAX_FRAME = 64 * 1024;
+
+  // Builds the hello for the given codec
+  static byte[] hello(byte codec) {
+    byte[] hello = new byte[HELLO_LENGTH];
+    System.arraycopy(MAGIC, 0, hello, 0, MAGIC.length);
+    hello[MAGIC.length] = codec;
+    return hello;
+  }
+
+  // A client hello that asks to resume the session with this token (0 = new session)
+  static byte[] hello(byte codec, long token) {
+    if (token == 0)
+      return hello(codec);
+    byte[] hello = new byte[HELLO_LENGTH + 8];
+    System.arraycopy(MAGIC, 0, hello, 0, MAGIC.length);
+    hello[MAGIC.length] = (byte) (codec | RESUME_FLAG);
+    ByteBuffer.wrap(hello, HELLO_LENGTH, 8).putLong(token);
+    return hello;
+  }
+
+  // How long the whole client hello is, going by its codec byte
+  static int helloLength(byte codec) {
+    return (codec & RESUME_FLAG) != 0 ? HELLO_LENGTH + 8 : HELLO_LENGTH;
+  }
+
+  /*
+   * A legacy connection's ObjectOutputStream keeps a handle to every object
+   * written to it until it is reset, and the reset makes it send the class
+   * descriptors all over again, so both ends reset every this many Messages.
+   */
+  static final int LEGACY_RESET_EVERY = 256;
+
+  // True if the first bytes of a connection are a Java serialization stream
+  static boolean isSerializationStream(byte first, byte second) {
+    return (first & 0xFF) == 0xAC && (second & 0xFF) == 0xED;
+  }
+
+  // True if the buffer (read from position 0) starts with our magic
+  static boolean isHello(ByteBuffer buf) {
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (buf.get(i) != MAGIC[i])
+        return false;
+    }
+    return true;
+  }
+
+  // Writes the hello and reads the server's answer. Returns the codec the server picked.
+  static MessageCodec handshake(DataOutputStream out, DataInputStream in, MessageCodec codec) throws IOException {
+    return handshake(out, in, codec, 0);
+  }
+
+  // Same, presenting the token from an earlier INIT so the server gives us our old ID back
+  static MessageCodec handshake(DataOutputStream out, DataInputStream in, MessageCodec codec, long token) throws IOException {
+    return handshake(out, in, codec, token, false, false);
+  }
+
+  /*
+   * heartbeats = we answer PINGs, the server may ping us (and drop us if we
+   * go quiet) from the start. acks = we ACK every MESSAGE with an ID.
+   */
+  static MessageCodec handshake(DataOutputStream out, DataInputStream in, MessageCodec codec, long token,
+      boolean heartbeats, boolean acks) throws IOException {
+    int flags = (heartbeats ? HEARTBEAT_FLAG : 0) | (acks ? ACK_FLAG : 0);
+    out.write(hello((byte) (codec.id | flags), token));
+    out.flush();
+    byte[] reply = new byte[HELLO_LENGTH];
+    in.readFully(reply);
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (reply[i] != MAGIC[i])
+        throw new IOException("Bad hello from server");
+    }
+    MessageCodec agreed = MessageCodec.forId(reply[MAGIC.length]);
+    if (agreed == null)
+      throw new IOException("Server picked unknown codec " + reply[MAGIC.length]);
+    return agreed;
+  }
+
+  // What the client said in its hello
+  static class Hello {
+    MessageCodec codec;
+    long token; // 0 unless the client is resuming a session
+    boolean heartbeats; // the client answers PINGs
+    boolean acks; // the client ACKs MESSAGEs
+  }
+
+  /*
+   * Server side of the hello. Falls back to SERIALIZED if the client asks
+   * for a codec we don't have, and tells the client which one it got.
+   */
+  static Hello acceptHello(DataInputStream in, DataOutputStream out) throws IOException {
+    byte[] hello = new byte[HELLO_LENGTH];
+    in.readFully(hello);
+    if (!isHello(ByteBuffer.wrap(hello)))
+      throw new IOException("Bad hello from client");
+    Hello h = new Hello();
+    h.codec = pickCodec(hello[MAGIC.length]);
+    h.heartbeats = sendsHeartbeats(hello[MAGIC.length]);
+    h.acks = sendsAcks(hello[MAGIC.length]);
+    if (helloLength(hello[MAGIC.length]) > HELLO_LENGTH)
+      h.token = in.readLong();
+    out.write(hello(h.codec.id));
+    out.flush();
+    return h;
+  }
+
+  static MessageCodec pickCodec(byte requested) {
+    MessageCodec codec = MessageCodec.forId((byte) (requested & ~(RESUME_FLAG | HEARTBEAT_FLAG | ACK_FLAG)));
+    return codec == null ? MessageCodec.SERIALIZED : codec;
+  }
+
+  static boolean sendsHeartbeats(byte requested) {
+    return (requested & HEARTBEAT_FLAG) != 0;
+  }
+
+  static boolean sendsAcks(byte requested) {
+    return (requested & ACK_FLAG) != 0;
+  }
+
+  // Returns a buffer holding the length prefix and the payload, ready to write
+  static ByteBuffer frame(Message msg, MessageCodec codec) throws IOException {
+    return ByteBuffer.wrap(frameBytes(msg, codec));
+  }
+
+  // The same as an array, for writing to a stream or sharing between connections
+  static byte[] frameBytes(Message msg, MessageCodec codec) throws IOException {
+    byte[] payload = codec.encode(msg);
+    byte[] frame = new byte[4 + payload.length];
+    ByteBuffer.wrap(frame).putInt(payload.length);
+    System.arraycopy(payload, 0, frame, 4, payload.length);
+    return frame;
+  }
+
+  /*
+   * Takes one complete frame off the front of buf (which is in read mode).
+   * Returns null and leaves buf untouched if the frame isn't all there yet.
+   */
+  static Message nextFrame(ByteBuffer buf, MessageCodec codec) throws IOException {
+    if (buf.remaining() < 4)
+      return null;
+    int length = buf.getInt(buf.position());
+    if (length < 0 || length > MAX_FRAME)
+      throw new IOException("Bad frame length " + length);
+    if (buf.remaining() < 4 + length)
+      return null;
+    Message msg = codec.decode(buf.array(), buf.arrayOffset() + buf.position() + 4, length);
+    buf.position(buf.position() + 4 + length);
+    return msg;
+  }
+
+  // Blocking versions for the thread-per-connection side
+  static void writeFrame(DataOutputStream out, Message msg, MessageCodec codec) throws IOException {
+    writeFrame(out, msg, codec, true);
+  }
+
+  // flush = false leaves the frame in out's buffer so several can go in one write
+  static void writeFrame(DataOutputStream out, Message msg, MessageCodec codec, boolean flush) throws IOException {
+    byte[] payload = codec.encode(msg);
+    out.writeInt(payload.length);
+    out.write(payload);
+    if (flush)
+      out.flush();
+  }
+
+  static Message readFrame(DataInputStream in, MessageCodec codec) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME)
+      throw new IOException("Bad frame length " + length);
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    return codec.decode(payload, 0, length);
+  }
+}
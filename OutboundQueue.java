@@ -0,0 +1,165 @@
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Bounded queue of things waiting to be written to one client.
+ *
+ * Any thread can offer (usually the reader thread of whoever sent the
+ * message), only the connection's writer takes. What happens when a slow
+ * client lets it fill up is decided by the Overflow policy.
+ *
+ * Uses a ReentrantLock rather than synchronized so a virtual thread
+ * waiting on it doesn't pin its carrier.
+ */
+class OutboundQueue<T> {
+
+    enum Overflow {
+        DROP_OLDEST, // throw away the oldest queued item to make room
+        DISCONNECT,  // give up on the client
+        BLOCK        // make the sender wait for room
+    }
+
+    private final ArrayDeque<T> items;
+    private final int capacity;
+    private final Overflow overflow;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed = false;
+    private long dropped = 0;
+
+    OutboundQueue(int capacity, Overflow overflow) {
+        this.items = new ArrayDeque<T>(Math.min(capacity, 64));
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    /*
+     * Queues item. Returns false if the queue is closed, or if it is full and
+     * the policy is DISCONNECT. When mayBlock is false (the caller is a
+     * selector thread) BLOCK is treated like DROP_OLDEST.
+     */
+    boolean offer(T item, boolean mayBlock) throws InterruptedException {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+            if (items.size() >= capacity) {
+                if (overflow == Overflow.DISCONNECT)
+                    return false;
+                if (overflow == Overflow.BLOCK && mayBlock) {
+                    while (items.size() >= capacity && !closed)
+                        notFull.await();
+                    if (closed)
+                        return false;
+                } else {
+                    items.poll();
+                    dropped++;
+                }
+            }
+            items.add(item);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queues item only if there is room right now: never waits and never drops anything else
+    boolean offerIfRoom(T item) {
+        lock.lock();
+        try {
+            if (closed || items.size() >= capacity)
+                return false;
+            items.add(item);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for the next item. Returns null once the queue is closed.
+    T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed)
+                notEmpty.await();
+            if (closed)
+                return null;
+            T item = items.poll();
+            notFull.signal();
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Like take() but gives up after the timeout, returning null
+    T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            if (closed)
+                return null;
+            T item = items.poll();
+            notFull.signal();
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Next item without waiting, or null
+    T poll() {
+        lock.lock();
+        try {
+            T item = items.poll();
+            if (item != null)
+                notFull.signal();
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops anything still queued and wakes up everyone waiting
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            items.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // How many items DROP_OLDEST has thrown away
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,460 @@
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/*
+ * Store-and-forward for MESSAGEs whose receiver isn't connected right now.
+ *
+ * Each recipient gets a backlog that is drained, oldest first, when it
+ * connects again. Up to memoryLimit messages (across all recipients) are
+ * kept in memory; past that a recipient's newer messages are appended to
+ * its own spill file in dir. A backlog never holds more than maxBacklog
+ * messages (the oldest go first) and anything older than ttlMillis is
+ * thrown away instead of being delivered.
+ *
+ * The bookkeeping is done under one lock. It is only taken for recipients
+ * that are offline and on connect/disconnect, so it stays off the normal
+ * routing path, and nothing under it touches the disk or a connection:
+ * spill files are written and read back by the "pending-io" thread, which
+ * keeps a file open for as long as its backlog is growing, and a backlog
+ * is copied out under the lock and sent after it has been let go.
+ */
+class PendingMessages {
+
+    private final File dir;
+    private final int maxBacklog;
+    private final long ttlMillis;
+    private final int memoryLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final HashMap<Integer, Backlog> backlogs = new HashMap<Integer, Backlog>();
+    // Recipients that have been drained and are taking messages directly again
+    private final HashMap<Integer, Server.Connection> online = new HashMap<Integer, Server.Connection>();
+    // Backlogs with spilled messages to write, or a file to read back
+    private final LinkedBlockingQueue<Backlog> work = new LinkedBlockingQueue<Backlog>();
+    private final Thread io;
+    private int inMemory = 0;
+    private long expired = 0;
+    private long dropped = 0;
+
+    PendingMessages(File dir, int maxBacklog, long ttlMillis, int memoryLimit) {
+        this.dir = dir;
+        this.maxBacklog = maxBacklog;
+        this.ttlMillis = ttlMillis;
+        this.memoryLimit = memoryLimit;
+        // IDs start again from 1 every run, so old spill files belong to nobody
+        dir.mkdirs();
+        File[] old = dir.listFiles();
+        if (old != null) {
+            for (File f : old) {
+                if (f.getName().endsWith(".pending"))
+                    f.delete();
+            }
+        }
+        io = new Thread(this::ioLoop, "pending-io");
+        io.setDaemon(true);
+        io.start();
+    }
+
+    /*
+     * Keeps msg for ID. If ID came back since the caller looked it up, msg is
+     * sent straight to it instead (after its backlog, so order holds).
+     */
+    void store(int ID, Message msg) {
+        Server.Connection c;
+        lock.lock();
+        try {
+            c = online.get(ID);
+            if (c == null)
+                keep(ID, msg);
+        } finally {
+            lock.unlock();
+        }
+        if (c != null)
+            c.sendMessage(msg); // it only went online once its backlog was sent
+    }
+
+    // Under the lock
+    private void keep(int ID, Message msg) {
+        Backlog b = backlogs.get(ID);
+        if (b == null) {
+            b = new Backlog(ID);
+            backlogs.put(ID, b);
+        }
+        long now = System.currentTimeMillis();
+        b.expire(now);
+        if (b.count() >= maxBacklog) {
+            b.dropOldest();
+            dropped++;
+        }
+        if (b.spilled == 0 && inMemory < memoryLimit) {
+            b.memory.add(new Pending(now, msg));
+            inMemory++;
+        } else {
+            b.unwritten.add(new Pending(now, msg));
+            b.spilled++;
+            b.schedule();
+        }
+    }
+
+    /*
+     * ID has connected as c: sends it everything that is still in date, then
+     * registers it, and from then on hands anything store()d for it straight
+     * to c. register puts c in the registry and returns what tells everyone
+     * else; the first part runs under the lock, so it can't cross with
+     * offline(), and the second after it has been let go.
+     *
+     * The backlog goes out a batch at a time, on this thread or, once it
+     * gets to the part that is on disk, on the pending-io thread. Until it
+     * is all out c isn't in the registry, so whatever comes in for ID keeps
+     * joining the end of the backlog instead of overtaking it.
+     */
+    void drainTo(int ID, Server.Connection c, Supplier<Runnable> register) {
+        Backlog b;
+        Runnable announce = null;
+        lock.lock();
+        try {
+            b = backlogs.get(ID);
+            if (b != null) {
+                b.drainingTo = c;
+                b.register = register;
+            } else {
+                online.put(ID, c);
+                announce = register.get();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (b != null)
+            b.drain(c, new ArrayList<Pending>());
+        else
+            announce.run();
+    }
+
+    /*
+     * ID disconnected, start keeping its messages again. True if c was
+     * still waiting for its backlog to be read back, so it was never
+     * registered and never will be.
+     */
+    boolean offline(int ID, Server.Connection c) {
+        lock.lock();
+        try {
+            if (online.get(ID) == c)
+                online.remove(ID);
+            Backlog b = backlogs.get(ID);
+            if (b != null && b.drainingTo == c) {
+                // Whatever hasn't been sent yet stays, it goes out when ID next connects
+                b.drainingTo = null;
+                b.register = null;
+                b.readBack = false;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * ID's session has expired, so it can never collect what is kept for it:
+     * throws that away, the file too once the pending-io thread gets to it.
+     */
+    void forget(int ID) {
+        lock.lock();
+        try {
+            Backlog b = backlogs.remove(ID);
+            if (b == null)
+                return;
+            expired += b.count();
+            inMemory -= b.memory.size();
+            b.memory.clear();
+            b.unwritten.clear();
+            b.spilled = 0;
+            b.skip = 0;
+            b.drainingTo = null;
+            b.register = null;
+            b.readBack = false;
+            b.forgotten = true;
+            b.schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Messages waiting for ID
+    int backlog(int ID) {
+        lock.lock();
+        try {
+            Backlog b = backlogs.get(ID);
+            return b == null ? 0 : b.count();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The pending-io thread: does the file work for one backlog at a time
+    private void ioLoop() {
+        while (true) {
+            Backlog b;
+            try {
+                b = work.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            b.flush();
+        }
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            return backlogs.size() + " backlogs, " + inMemory + " in memory, "
+                    + expired + " expired, " + dropped + " dropped";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static class Pending {
+        final long storedAt;
+        final Message msg;
+
+        Pending(long storedAt, Message msg) {
+            this.storedAt = storedAt;
+            this.msg = msg;
+        }
+    }
+
+    /*
+     * One recipient's messages. The oldest are in memory, anything that had
+     * to be spilled is newer and goes to the file, so once a recipient has
+     * spilled everything after that goes to the file too.
+     *
+     * Spilled messages wait in unwritten until the pending-io thread gets to
+     * them; only that thread touches out, written and the file itself.
+     *
+     * File records: storedAt (long), payload length (int), BINARY payload.
+     */
+    class Backlog {
+        final int ID;
+        final ArrayDeque<Pending> memory = new ArrayDeque<Pending>();
+        final ArrayDeque<Pending> unwritten = new ArrayDeque<Pending>();
+        int spilled = 0; // records in the file or on their way there
+        int skip = 0; // records at the front of the file that were dropped
+        boolean queued = false; // waiting in work
+        Server.Connection drainingTo; // set once the recipient is back, until it has been sent everything
+        Supplier<Runnable> register;
+        boolean readBack = false; // drainingTo is waiting for the pending-io thread to read the file
+        boolean forgotten = false; // the session expired, the file only wants deleting
+        // pending-io thread only
+        DataOutputStream out;
+        int written = 0;
+
+        Backlog(int ID) {
+            this.ID = ID;
+        }
+
+        File file() {
+            return new File(dir, ID + ".pending");
+        }
+
+        int count() {
+            return memory.size() + spilled - skip;
+        }
+
+        // Only looks at memory, the file is checked when it is read back
+        void expire(long now) {
+            while (!memory.isEmpty() && memory.peek().storedAt < now - ttlMillis) {
+                memory.poll();
+                inMemory--;
+                expired++;
+            }
+        }
+
+        void dropOldest() {
+            if (!memory.isEmpty()) {
+                memory.poll();
+                inMemory--;
+            } else {
+                skip++;
+            }
+        }
+
+        // Under the lock: gets the pending-io thread to look at this backlog
+        void schedule() {
+            if (!queued) {
+                queued = true;
+                work.add(this);
+            }
+        }
+
+        // On the pending-io thread: writes out what was spilled, then reads the lot back if the recipient is waiting
+        void flush() {
+            ArrayList<Pending> batch;
+            boolean draining;
+            boolean gone;
+            lock.lock();
+            try {
+                queued = false;
+                gone = forgotten;
+                batch = new ArrayList<Pending>(unwritten);
+                unwritten.clear();
+                draining = readBack;
+            } finally {
+                lock.unlock();
+            }
+            if (gone) {
+                delete();
+                return;
+            }
+            if (!batch.isEmpty())
+                write(batch);
+            if (draining)
+                drainFile();
+        }
+
+        void write(ArrayList<Pending> batch) {
+            int done = 0;
+            try {
+                if (out == null)
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file(), true)));
+                for (Pending p : batch) {
+                    byte[] payload = MessageCodec.BINARY.encode(p.msg);
+                    out.writeLong(p.storedAt);
+                    out.writeInt(payload.length);
+                    out.write(payload);
+                    done++;
+                }
+                out.flush();
+            } catch (IOException e) {
+                Log.log(Log.WARN, "Couldn't spill messages for client {}: {}", ID, e);
+                lock.lock();
+                try {
+                    spilled -= batch.size() - done;
+                    dropped += batch.size() - done;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            written += done;
+        }
+
+        // pending-io thread only
+        void delete() {
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException e) {
+            }
+            out = null;
+            written = 0;
+            file().delete();
+        }
+
+        /*
+         * Reads the file back outside the lock, then hands it, and anything
+         * spilled while it was being read, to drain(). If the recipient has
+         * gone again the file is left for next time.
+         */
+        void drainFile() {
+            File f = file();
+            ArrayList<Pending> back = new ArrayList<Pending>(written);
+            try {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+                try {
+                    for (int i = 0; i < written; i++) {
+                        long storedAt = in.readLong();
+                        byte[] payload = new byte[in.readInt()];
+                        in.readFully(payload);
+                        back.add(new Pending(storedAt, MessageCodec.BINARY.decode(payload, 0, payload.length)));
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.log(Log.WARN, "Couldn't read spilled messages for client {}: {}", ID, e);
+            }
+
+            Server.Connection c;
+            ArrayList<Pending> batch = new ArrayList<Pending>(back.size());
+            lock.lock();
+            try {
+                c = drainingTo;
+                if (c == null || !readBack)
+                    return;
+                readBack = false;
+                back.addAll(unwritten);
+                unwritten.clear();
+                long cutoff = System.currentTimeMillis() - ttlMillis;
+                for (int i = skip; i < back.size(); i++) {
+                    if (back.get(i).storedAt >= cutoff)
+                        batch.add(back.get(i));
+                    else
+                        expired++;
+                }
+                spilled = 0;
+                skip = 0;
+            } finally {
+                lock.unlock();
+            }
+            written = 0;
+            f.delete();
+            drain(c, batch);
+        }
+
+        /*
+         * Sends batch to c, then whatever has been kept for it since, until
+         * a look under the lock finds nothing left; only then does c go
+         * online and get registered. Stops if c goes offline in between, or
+         * leaves the rest to the pending-io thread once it gets to the file.
+         */
+        void drain(Server.Connection c, ArrayList<Pending> batch) {
+            while (true) {
+                for (int i = 0; i < batch.size(); i++)
+                    c.sendMessage(batch.get(i).msg);
+                batch.clear();
+
+                Runnable announce;
+                lock.lock();
+                try {
+                    if (drainingTo != c)
+                        return; // gone again
+                    long cutoff = System.currentTimeMillis() - ttlMillis;
+                    for (Pending p : memory) {
+                        if (p.storedAt >= cutoff)
+                            batch.add(p);
+                        else
+                            expired++;
+                    }
+                    inMemory -= memory.size();
+                    memory.clear();
+                    if (!batch.isEmpty())
+                        continue;
+                    if (spilled > 0) {
+                        readBack = true;
+                        schedule();
+                        return;
+                    }
+                    if (backlogs.get(ID) == this)
+                        backlogs.remove(ID);
+                    online.put(ID, c);
+                    announce = register.get();
+                    drainingTo = null;
+                    register = null;
+                } finally {
+                    lock.unlock();
+                }
+                announce.run();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import com.pi4j.io.gpio.*;
+import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+
+/*
+ * The five buttons on the handset's GPIO pins.
+ *
+ * Pi4J calls us on every edge. A press only counts if the pin had been
+ * quiet for DEBOUNCE_MS before it; the bounces that follow a press or a
+ * release all land inside that window and are ignored.
+ */
+class PiButtons implements ButtonSource, GpioPinListenerDigital {
+
+  static final long DEBOUNCE_MS = 30;
+
+  GpioController gpio;
+  private ButtonInput input;
+  private final HashMap<GpioPin, ButtonInput.Event> buttons = new HashMap<GpioPin, ButtonInput.Event>();
+  private final HashMap<GpioPin, Long> lastEdge = new HashMap<GpioPin, Long>();
+
+  public void start(ButtonInput input) {
+    this.input = input;
+    this.gpio = GpioFactory.getInstance();
+
+    // provision the pins as inputs with their internal pull down resistors enabled
+    attach(RaspiPin.GPIO_23, ButtonInput.Event.UP);
+    attach(RaspiPin.GPIO_22, ButtonInput.Event.DOWN);
+    attach(RaspiPin.GPIO_26, ButtonInput.Event.LEFT);
+    attach(RaspiPin.GPIO_27, ButtonInput.Event.RIGHT);
+    attach(RaspiPin.GPIO_21, ButtonInput.Event.SELECT);
+  }
+
+  void attach(Pin address, ButtonInput.Event button) {
+    GpioPinDigitalInput pin = gpio.provisionDigitalInputPin(address, PinPullResistance.PULL_DOWN);
+    pin.setShutdownOptions(true); // set shutdown state for this input pin
+    synchronized (this) {
+      buttons.put(pin, button);
+    }
+    pin.addListener(this);
+  }
+
+  public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
+    edge(event.getPin(), event.getState().isHigh(), System.nanoTime());
+  }
+
+  // One edge on pin at time now (nanoTime), high = pressed
+  void edge(GpioPin pin, boolean high, long now) {
+    ButtonInput.Event button;
+    synchronized (this) {
+      button = buttons.get(pin);
+      Long last = lastEdge.put(pin, now);
+      if (button == null || !high)
+        return;
+      if (last != null && now - last < TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MS))
+        return;
+    }
+    input.press(button);
+  }
+}
@@ -0,0 +1,76 @@
+
+import com.pi4j.wiringpi.Gpio;
+import com.pi4j.wiringpi.Lcd;
+
+// The handset's HD44780, driven through wiringPi
+class PiLcd implements LcdDisplay {
+
+  final int lcdHandle; // the handle to control calling the lcd
+  final int rows;
+  final int columns;
+
+  private PiLcd(int lcdHandle, int rows, int columns) {
+    this.lcdHandle = lcdHandle;
+    this.rows = rows;
+    this.columns = columns;
+  }
+
+  // Sets up wiringPi and the LCD, null if either fails
+  static PiLcd open(int rows, int columns, int bits) {
+    // setup wiringPi
+    if (Gpio.wiringPiSetup() == -1) {
+      Log.log(Log.ERROR, " ==>> GPIO SETUP FAILED");
+      return null;
+    }
+
+    // initialize LCD
+    int lcdHandle = Lcd.lcdInit(rows, // number of row supported by LCD
+        columns, // number of columns supported by LCD
+        bits, // number of bits used to communicate to LCD
+        11, // LCD RS pin
+        10, // LCD strobe pin
+        0, // LCD data bit 1
+        1, // LCD data bit 2
+        2, // LCD data bit 3
+        3, // LCD data bit 4
+        0, // LCD data bit 5 (set to 0 if using 4 bit communication)
+        0, // LCD data bit 6 (set to 0 if using 4 bit communication)
+        0, // LCD data bit 7 (set to 0 if using 4 bit communication)
+        0); // LCD data bit 8 (set to 0 if using 4 bit communication)
+
+    // verify initialization
+    if (lcdHandle == -1) {
+      Log.log(Log.ERROR, " ==>> LCD INIT FAILED");
+      return null;
+    }
+    return new PiLcd(lcdHandle, rows, columns);
+  }
+
+  public int rows() {
+    return rows;
+  }
+
+  public int columns() {
+    return columns;
+  }
+
+  public void clear() {
+    Lcd.lcdClear(lcdHandle);
+  }
+
+  public void position(int x, int y) {
+    Lcd.lcdPosition(lcdHandle, x, y);
+  }
+
+  public void puts(String s) {
+    Lcd.lcdPuts(lcdHandle, s);
+  }
+
+  public void showCursor(boolean on) {
+    Lcd.lcdCursor(lcdHandle, on ? 1 : 0);
+    Lcd.lcdCursorBlink(lcdHandle, on ? 1 : 0);
+  }
+
+  public void frameDone() {
+  }
+}
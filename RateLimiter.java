@@ -0,0 +1,105 @@
+
+/*
+ * Per-client flood protection: a token bucket for messages and one for
+ * bytes, refilled continuously at the configured rates and holding up to
+ * burstSeconds worth. Every frame a client sends takes one message token
+ * and its size in byte tokens; if either bucket runs dry the client is
+ * over its limit and the Server applies the Penalty.
+ *
+ * Buckets are kept by client ID, not by connection, so reconnecting with
+ * the same token doesn't refill them. They live in LongMaps split into
+ * stripes, each with its own lock, so readers for different clients
+ * rarely meet. A bucket is made once per client; take() allocates nothing.
+ */
+class RateLimiter {
+
+    enum Penalty {
+        DROP,      // throw the message away (a MESSAGE with an ID gets a NACK)
+        DELAY,     // deliver it, then stop reading from the client until it's back under the limit
+        DISCONNECT // hang up on the client
+    }
+
+    private static final int STRIPES = 16; // a power of two
+
+    private static final class Bucket {
+        double messages;
+        double bytes;
+        long refilled; // System.nanoTime() of the last refill
+    }
+
+    // Some of the clients' buckets, and the lock for them
+    private static final class Stripe {
+        final LongMap<Bucket> buckets = new LongMap<Bucket>();
+    }
+
+    private final double messageRate; // per second, 0 for no limit
+    private final double byteRate;
+    private final double maxMessages;
+    private final double maxBytes;
+    final Penalty penalty;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    RateLimiter(double messageRate, double byteRate, double burstSeconds, Penalty penalty) {
+        this.messageRate = messageRate;
+        this.byteRate = byteRate;
+        this.maxMessages = Math.max(1, messageRate * burstSeconds);
+        this.maxBytes = Math.max(1, byteRate * burstSeconds);
+        this.penalty = penalty;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /*
+     * Takes one message of size bytes from ID's buckets. Returns 0 if that
+     * was within the limits, otherwise how many nanos until it would have
+     * been. Over the limit the tokens are only taken for DELAY (the client
+     * goes into debt and waits it off); a dropped message costs nothing.
+     *
+     * A message bigger than the whole byte bucket goes through whenever
+     * the bucket is full, or it could never be sent at all.
+     */
+    long take(int ID, int size, long now) {
+        Stripe stripe = stripes[ID & (STRIPES - 1)];
+        synchronized (stripe) {
+            Bucket b = stripe.buckets.get(ID);
+            if (b == null) {
+                b = new Bucket();
+                b.messages = maxMessages;
+                b.bytes = maxBytes;
+                b.refilled = now;
+                stripe.buckets.put(ID, b);
+            }
+            double seconds = (now - b.refilled) / 1e9;
+            b.refilled = now;
+            b.messages = Math.min(maxMessages, b.messages + seconds * messageRate);
+            b.bytes = Math.min(maxBytes, b.bytes + seconds * byteRate);
+
+            double messagesShort = messageRate > 0 ? 1 - b.messages : 0;
+            double bytesShort = byteRate > 0 ? Math.min(size, maxBytes) - b.bytes : 0;
+            boolean over = messagesShort > 0 || bytesShort > 0;
+            if (!over || penalty == Penalty.DELAY) {
+                if (messageRate > 0)
+                    b.messages -= 1;
+                if (byteRate > 0)
+                    b.bytes -= size;
+            }
+            if (!over)
+                return 0;
+            // How long until both buckets are back to where this message would have fitted
+            double wait = 0;
+            if (messageRate > 0)
+                wait = Math.max(wait, (penalty == Penalty.DELAY ? -b.messages : messagesShort) / messageRate);
+            if (byteRate > 0)
+                wait = Math.max(wait, (penalty == Penalty.DELAY ? -b.bytes : bytesShort) / byteRate);
+            return Math.max(1, (long) (wait * 1e9));
+        }
+    }
+
+    // ID's session is gone, it won't send anything again
+    void forget(int ID) {
+        Stripe stripe = stripes[ID & (STRIPES - 1)];
+        synchronized (stripe) {
+            stripe.buckets.remove(ID);
+        }
+    }
+}
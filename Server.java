@@ -7,40 +7,356 @@ import java.util.*;
 
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Server {
 
     int port;
-    int count = 1;
-    private HashMap<Integer, ClientThread> clientMap = new HashMap<Integer, ClientThread>();
-    private ArrayList<Integer> connectedClientIDs = new ArrayList<Integer>();
+    private ClientRegistry<Connection> clients = new ClientRegistry<Connection>();
     ServerThread server;
+    IoLoop[] ioLoops;
+    ServerSocketChannel serverChannel;
+    ServerSettings settings = new ServerSettings();
+    volatile boolean running = true;
+
+    Semaphore clientSlots; // null when there is no limit on connected clients
+    ThreadFactory clientThreadFactory; // null means ClientThreads start themselves
+    Set<Thread> clientThreads = ConcurrentHashMap.newKeySet(); // for waiting on shutdown
+    PendingMessages pending; // held for offline clients, null if that is turned off
+    Sessions sessions; // made by the constructor, once settings are known
+    MessageAuditLog auditLog; // null unless --audit-log
+    HeartbeatWheel heartbeats; // null if --ping-interval 0
+    Channels channels = new Channels();
+    ServerMetrics metrics = new ServerMetrics(() -> clients.snapshot());
+    RateLimiter limiter; // null unless --rate-messages or --rate-bytes
+
+    // Every socket flush and how many messages went out with it
+    LongAdder flushes = new LongAdder();
+    LongAdder flushedMessages = new LongAdder();
 
     Server(int port) {
         this.port = port;
+        openSessions();
         server = new ServerThread();
         server.start();
     }
 
+    Server(ServerSettings settings) throws IOException {
+        this.settings = settings;
+        this.port = settings.port;
+        openSessions();
+        if (settings.maxClients > 0)
+            clientSlots = new Semaphore(settings.maxClients);
+        if (settings.virtualThreads)
+            clientThreadFactory = virtualThreadFactory();
+        if (settings.offlineBacklog > 0)
+            pending = new PendingMessages(settings.offlineDir(), settings.offlineBacklog,
+                    settings.offlineTtlSeconds * 1000, settings.offlineMemory);
+        if (settings.auditLogDir != null)
+            auditLog = new MessageAuditLog(new File(settings.auditLogDir), settings.auditLogSegmentBytes,
+                    settings.auditLogSegments, settings.auditLogSync);
+        if (settings.pingIntervalSeconds > 0) {
+            heartbeats = new HeartbeatWheel(TimeUnit.SECONDS.toNanos(settings.pingIntervalSeconds),
+                    TimeUnit.SECONDS.toNanos(settings.deadAfterSeconds), c -> clients.get(c.clientID()) == c);
+            heartbeats.start();
+        }
+        if (settings.rateMessages > 0 || settings.rateBytes > 0)
+            limiter = new RateLimiter(settings.rateMessages, settings.rateBytes, settings.rateBurstSeconds,
+                    settings.ratePenalty);
+        if (settings.metricsIntervalSeconds > 0)
+            metrics.startReports(settings.metricsIntervalSeconds);
+        if (settings.metricsPort > 0)
+            metrics.serve(settings.metricsPort);
+
+        if (settings.ioThreads > 0) {
+            startNio(settings.ioThreads);
+        } else {
+            server = new ServerThread();
+            server.start();
+        }
+    }
+
+    /*
+     * Starts the server in non-blocking mode: ioThreads selector threads
+     * service every connection instead of one thread per client.
+     */
+    void startNio(int ioThreads) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        ioLoops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++)
+            ioLoops[i] = new IoLoop(i);
+        // The first loop also accepts and hands new channels out round robin
+        ioLoops[0].acceptOn(serverChannel);
+        for (IoLoop loop : ioLoops)
+            loop.start();
+    }
+
+    /*
+     * Thread.ofVirtual() only exists on Java 21+, so it is looked up at
+     * runtime. Returns null (plain platform threads) on older JVMs.
+     */
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            System.out.println("Virtual threads need Java 21, using platform threads");
+            return null;
+        }
+    }
+
+    // Starts the read loop for a blocking client on the configured kind of thread
+    void startClientThread(ClientThread c) {
+        Thread t = clientThreadFactory == null ? c : clientThreadFactory.newThread(c);
+        clientThreads.add(t);
+        t.start();
+    }
+
+    // Any other per-client thread (e.g. a writer), virtual if those are turned on
+    Thread newClientThread(Runnable r, String name) {
+        if (clientThreadFactory == null)
+            return new Thread(r, name);
+        Thread t = clientThreadFactory.newThread(r);
+        t.setName(name);
+        return t;
+    }
+
+    <T> OutboundQueue<T> newOutboundQueue() {
+        return new OutboundQueue<T>(settings.queueSize, settings.overflow);
+    }
+
+    void recordFlush(int messages) {
+        flushes.increment();
+        flushedMessages.add(messages);
+    }
+
+    // How well batching is working, 1.0 means every message got its own flush
+    public double averageMessagesPerFlush() {
+        long n = flushes.sum();
+        return n == 0 ? 0 : (double) flushedMessages.sum() / n;
+    }
+
+    // Selector threads must never wait on a full queue
+    static boolean mayBlock() {
+        return !(Thread.currentThread() instanceof IoLoop);
+    }
+
+    /*
+     * Stops accepting, closes every connection and waits up to timeoutMillis
+     * for the client threads to finish their clean up.
+     */
+    public void shutdown(long timeoutMillis) {
+        running = false;
+        if (heartbeats != null)
+            heartbeats.stop();
+        metrics.stop();
+        try {
+            if (server != null && server.serverSocket != null)
+                server.serverSocket.close();
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException e) {
+        }
+
+        ClientRegistry.Snapshot<Connection> open = clients.snapshot();
+        for (int i = 0; i < open.size; i++)
+            open.connectionAt(i).disconnect();
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Thread t : clientThreads) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                break;
+            try {
+                t.join(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (ioLoops != null) {
+            for (IoLoop loop : ioLoops)
+                loop.interrupt();
+        }
+
+        System.out.println("Average messages per flush: " + averageMessagesPerFlush());
+        if (pending != null)
+            System.out.println("Offline messages: " + pending);
+        if (heartbeats != null)
+            System.out.println("Dropped for not answering pings: " + heartbeats.evicted());
+        if (auditLog != null) {
+            System.out.println("Messages added to the audit log: " + auditLog.appended());
+            auditLog.close();
+        }
+        System.out.println(metrics.text());
+        Log.flush(1000);
+    }
+
     Server() {
         this.port = 5555;
+        openSessions();
+    }
+
+    void openSessions() {
+        sessions = new Sessions(clients, settings.sessionTtlSeconds * 1000);
+        sessions.onExpire(this::sessionExpired);
     }
     
+    /*
+     * Anything a Message can be routed to. ClientThread is the blocking
+     * version, NioConnection lives on one of the selector threads.
+     */
+    interface Connection {
+        int clientID();
+        void sendMessage(Message msg);
+        void sendEncoded(EncodedMessage msg); // for fan-out, every connection shares the encoded frame
+        boolean sendIfRoom(Message msg); // queues msg only if that needs no waiting or dropping, false if it wasn't sent
+        void disconnect();
+        int queueDepth(); // messages waiting to be written to this client
+        boolean wantsDeltas(); // true once the client has said it understands CLIENT_JOIN/LEAVE
+        void enableDeltas();
+        void heard(); // a message just came in from the client
+        long lastHeard(); // System.nanoTime() of the last message from the client
+        boolean sendsHeartbeats(); // true if the hello said so, or once the client has sent a PING or PONG, see HeartbeatWheel
+        void enableHeartbeats();
+        boolean sendsAcks(); // true if the hello said so, or once the client has sent an ACK
+        void enableAcks();
+        Sessions.Session session(); // null until the hello has been read
+    }
     
+    // ID can't come back any more, forget everything kept for it
+    void sessionExpired(int ID) {
+        clients.retire(ID); // so deliver() stops keeping messages for it
+        if (pending != null)
+            pending.forget(ID);
+        channels.leaveAll(ID);
+        if (limiter != null)
+            limiter.forget(ID);
+    }
+
+    // Picks the ID for a new connection, the old one if token is from a session we still know
+    Sessions.Session openSession(long token) {
+        return sessions.open(token);
+    }
+
+    // The first thing a client is sent: its ID and the token to get that ID back next time
+    Message initMessage(Sessions.Session session) {
+        Message msg = new Message();
+        msg.messageType = "INIT";
+        msg.receiverID = session.ID; // send the client their ID no.
+        msg.token = session.token;
+        return msg;
+    }
+
+    /*
+     * Registers c and tells everyone about it. Call once the INIT has been
+     * queued, so the client knows its ID before it sees any list. Anything
+     * kept for ID while it was away goes out first; if some of that had to
+     * go to disk, c is registered from the pending-io thread once it has
+     * been read back and sent.
+     *
+     * If ID is resuming while its old connection is still registered (we
+     * haven't noticed that one die yet) c just takes its place; as far as
+     * everyone else is concerned nobody joined or left.
+     */
+    void clientJoined(int ID, Connection c) {
+        if (pending != null)
+            pending.drainTo(ID, c, () -> register(ID, c));
+        else
+            register(ID, c).run();
+    }
+
+    // Puts c in the registry, sends nothing; what it returns tells everyone
+    Runnable register(int ID, Connection c) {
+        Connection old = clients.get(ID);
+        ClientRegistry.Snapshot<Connection> now = clients.put(ID, c);
+        if (heartbeats != null)
+            heartbeats.add(c);
+        return () -> {
+            if (old != null && old != c) {
+                old.disconnect();
+                c.sendMessage(clientListMessage(now));
+            } else if (clients.get(ID) == c) { // it may have left again already, then its LEAVE went out instead
+                announce("CLIENT_JOIN", ID, now);
+            }
+        };
+    }
+
+    // Drops ID if it is still c's and tells everyone it left
+    void clientLeft(int ID, Connection c) {
+        boolean unregistered = pending != null && pending.offline(ID, c);
+        ClientRegistry.Snapshot<Connection> now = clients.remove(ID, c);
+        if (now != null) {
+            sessions.left(ID);
+            announce("CLIENT_LEAVE", ID, now);
+        } else if (unregistered) {
+            sessions.left(ID); // went before its backlog was read back, nobody saw it join
+        }
+    }
+
+    /*
+     * Sends a JOIN/LEAVE delta to every client that understands them and the
+     * full list to the rest (old clients, new clients that haven't asked yet,
+     * or everyone with --full-lists). The delta carries the registry version
+     * the change produced, so a client can tell when it missed one.
+     */
+    void announce(String type, int ID, ClientRegistry.Snapshot<Connection> now) {
+        if (settings.fullLists) {
+            sendClientList();
+            return;
+        }
+        Message delta = new Message();
+        delta.messageType = type;
+        delta.senderID = ID;
+        delta.listVersion = now.version;
+        EncodedMessage encodedDelta = new EncodedMessage(delta);
+
+        ClientRegistry.Snapshot<Connection> all = clients.snapshot();
+        EncodedMessage full = null; // only built if someone needs it
+        for (int i = 0; i < all.size; i++) {
+            Connection c = all.connectionAt(i);
+            if (c.wantsDeltas()) {
+                c.sendEncoded(encodedDelta);
+            } else {
+                if (full == null)
+                    full = new EncodedMessage(clientListMessage(all));
+                c.sendEncoded(full);
+            }
+        }
+    }
+
+    // How far behind client ID is, -1 if it isn't connected
+    public int queueDepth(int ID) {
+        Connection c = clients.get(ID);
+        return c == null ? -1 : c.queueDepth();
+    }
 
     // Sends a game info object through the client's output stream
     public void sendClientMessage(int ID, Message msg) {
-        try {
-            clientMap.get(ID).sendMessage(msg);
-        } catch (NullPointerException e) {
-        }
+        Connection c = clients.get(ID);
+        if (c != null)
+            c.sendMessage(msg);
     }
     
+    // Encodes msg once, however many clients there are
     public void sendAll(Message msg) {
-    	synchronized(connectedClientIDs) {
-    	for (int currID : connectedClientIDs) {
-    		sendClientMessage(currID, msg);
-    	}
+    	ClientRegistry.Snapshot<Connection> all = clients.snapshot();
+    	EncodedMessage encoded = new EncodedMessage(msg);
+    	for (int i = 0; i < all.size; i++) {
+    		all.connectionAt(i).sendEncoded(encoded);
     	}
     	/*for (Map.Entry<Integer, ClientThread> mapClient : clientMap.entrySet()) {
     		
@@ -51,6 +367,250 @@ public class Server {
     	}*/
     }
 
+    /*
+     * Sends everyone the list of connected IDs. Works off one snapshot of the
+     * registry so the list and the recipients always match, without locking.
+     */
+    public void sendClientList() {
+        ClientRegistry.Snapshot<Connection> all = clients.snapshot();
+        EncodedMessage msgClientList = new EncodedMessage(clientListMessage(all));
+
+        for (int i = 0; i < all.size; i++) {
+            all.connectionAt(i).sendEncoded(msgClientList);
+        }
+    }
+
+    Message clientListMessage(ClientRegistry.Snapshot<Connection> all) {
+        Message msgClientList = new Message();
+        msgClientList.messageType = "CLIENT_LIST";
+        msgClientList.listVersion = all.version;
+
+        ArrayList<Integer> clientList = new ArrayList<Integer>(all.size);
+        for (int i = 0; i < all.size; i++) {
+            clientList.add(all.idAt(i));
+        }
+        msgClientList.clientList = clientList;
+        return msgClientList;
+    }
+
+    /*
+     * A client asked for the whole list, which also tells us it can handle
+     * deltas from now on. haveVersion is the list it already has; if that is
+     * still current it only gets the version back (no clientList), so it
+     * always hears an answer and knows it can stop waiting.
+     */
+    void sendClientListTo(Connection c, long haveVersion) {
+        if (!settings.fullLists)
+            c.enableDeltas();
+        ClientRegistry.Snapshot<Connection> all = clients.snapshot();
+        if (haveVersion != all.version || settings.fullLists) {
+            c.sendMessage(clientListMessage(all));
+        } else {
+            Message current = new Message();
+            current.messageType = "CLIENT_LIST";
+            current.listVersion = all.version;
+            c.sendMessage(current);
+        }
+    }
+
+    // What deliver() and deliverToChannel() did with a MESSAGE
+    static final int UNDELIVERABLE = 0; // nobody to give it to, the sender gets a NACK
+    static final int ROUTED = 1; // on its way to the receiver, who ACKs it
+    static final int HELD = 2; // kept for later, the server ACKs it so the sender stops resending
+    static final int FORWARDED = 3; // routed, but to clients that never ACK (old handsets), so the server ACKs it
+
+    /*
+     * Sends a MESSAGE to its receiver, or keeps it for later if the receiver
+     * has been connected before but isn't right now, and adds it to the
+     * audit log. UNDELIVERABLE if neither was possible; then it isn't
+     * logged, it never went anywhere.
+     */
+    int deliver(Message msg) {
+        Connection c = clients.get(msg.receiverID);
+        int outcome;
+        if (c != null) {
+            c.sendMessage(msg);
+            metrics.routed.increment();
+            outcome = c.sendsAcks() ? ROUTED : FORWARDED;
+        } else if (pending != null && clients.issued(msg.receiverID)) {
+            pending.store(msg.receiverID, msg);
+            metrics.held.increment();
+            outcome = HELD;
+        } else {
+            return UNDELIVERABLE;
+        }
+        auditMessage(msg);
+        return outcome;
+    }
+
+    /*
+     * Fans a MESSAGE to a channel out to every member but the sender,
+     * encoded once for all of them, and audit logs it. Members that are
+     * offline get it kept like any other message; if any were, it counts
+     * as HELD, and if none of the members it went to ACK it is FORWARDED.
+     * UNDELIVERABLE if nobody else is subscribed.
+     */
+    int deliverToChannel(Message msg) {
+        int[] members = channels.members(msg.channel);
+        if (members.length == 0 || (members.length == 1 && members[0] == msg.senderID))
+            return UNDELIVERABLE;
+        EncodedMessage encoded = new EncodedMessage(msg);
+        int routed = 0;
+        int held = 0;
+        int ackers = 0;
+        for (int i = 0; i < members.length; i++) {
+            int ID = members[i];
+            if (ID == msg.senderID)
+                continue;
+            Connection c = clients.get(ID);
+            if (c != null) {
+                c.sendEncoded(encoded);
+                routed++;
+                if (c.sendsAcks())
+                    ackers++;
+            } else if (pending != null) {
+                pending.store(ID, msg);
+                held++;
+            }
+        }
+        metrics.routed.add(routed);
+        metrics.held.add(held);
+        if (routed + held > 0)
+            auditMessage(msg);
+        return held > 0 ? HELD : ackers == 0 ? FORWARDED : ROUTED;
+    }
+
+    // Adds a MESSAGE that was routed or kept to the audit log, if there is one
+    void auditMessage(Message msg) {
+        if (auditLog == null)
+            return;
+        try {
+            auditLog.append(msg);
+        } catch (IOException e) {
+            Log.log(Log.WARN, "Couldn't add message to the audit log: {}", e);
+        }
+    }
+
+    // Tells the sender msg can't be delivered, if it gave it an ID to be told about
+    void nack(Connection from, Message msg) {
+        answer(from, msg, "NACK");
+    }
+
+    // Tells the sender the server has msg and will see it delivered, so it can stop resending
+    void ack(Connection from, Message msg) {
+        answer(from, msg, "ACK");
+    }
+
+    void answer(Connection from, Message msg, String type) {
+        if (msg.messageID == 0)
+            return;
+        Message answer = new Message();
+        answer.messageType = type;
+        answer.receiverID = msg.senderID;
+        answer.senderID = msg.receiverID; // who it was for
+        answer.channel = msg.channel;
+        answer.messageID = msg.messageID;
+        from.sendMessage(answer);
+    }
+
+    /*
+     * Checks a frame of size bytes that just came in from a client against
+     * its rate limits, before it is parsed. Returns 0 to go ahead as usual,
+     * -1 if the message has been dealt with (dropped, or the client is being
+     * disconnected), or for DELAY how many nanos to stop reading from the
+     * client after this message.
+     */
+    long rateLimit(Connection from, Message msg, int size) {
+        if (limiter == null)
+            return 0;
+        long wait = limiter.take(from.clientID(), size, System.nanoTime());
+        if (wait == 0)
+            return 0;
+        metrics.limited.increment();
+        switch (limiter.penalty) {
+        case DELAY:
+            return wait;
+        case DISCONNECT:
+            Log.log(Log.WARN, "Client {} is over its rate limit, disconnecting", from.clientID());
+            from.disconnect();
+            return -1;
+        default:
+            Log.log(Log.DEBUG, "Client {} is over its rate limit, dropped a {}", from.clientID(), msg.messageType);
+            if ("MESSAGE".equals(msg.messageType))
+                nack(from, msg);
+            return -1;
+        }
+    }
+
+    boolean clientExists(int num) {
+    	return clients.contains(num);
+    }
+
+    // Routes a message that came in from one of the clients
+    public void parseMessage(Connection from, Message msg) {
+    	String msgType = msg.messageType;
+        from.heard();
+        metrics.received.increment();
+
+        // Switch statement to check message type
+        switch (msgType) {
+        case "INIT":
+        	Log.log(Log.WARN, "Client {} sent an INIT, shouldn't be receiving this tag", from.clientID());
+          break;
+        case "MESSAGE":
+            Sessions.Session sender = from.session();
+            if (msg.messageID != 0 && sender != null && sender.seen(msg.messageID)) {
+                // A resend of one we already took: the ACK it waits for got lost, don't route it twice
+                ack(from, msg);
+                break;
+            }
+            long start = System.nanoTime();
+            int outcome = msg.channel != null ? deliverToChannel(msg) : deliver(msg);
+            (msg.channel != null ? metrics.channelLatency : metrics.routeLatency).record(System.nanoTime() - start);
+        	if (outcome == UNDELIVERABLE) {
+        	    metrics.undeliverable.increment();
+        	    nack(from, msg);
+        	    break;
+        	}
+            if (msg.messageID != 0 && sender != null)
+                sender.remember(msg.messageID);
+            if (outcome == HELD || outcome == FORWARDED)
+                ack(from, msg);
+          break;
+        case "SUBSCRIBE":
+            if (msg.channel != null)
+                channels.subscribe(msg.channel, from.clientID());
+          break;
+        case "UNSUBSCRIBE":
+            if (msg.channel != null)
+                channels.unsubscribe(msg.channel, from.clientID());
+          break;
+        case "ACK":
+            // From a receiver back to the sender. Not logged or kept: if the
+            // sender is gone it will just send the message again
+            from.enableAcks();
+            sendClientMessage(msg.receiverID, msg);
+          break;
+        case "CLIENT_LIST":
+        	// A request for the full list, on connect or after missing a delta
+        	sendClientListTo(from, msg.listVersion);
+          break;
+        case "PING":
+            // The client checks on us, so it will answer our pings too
+            from.enableHeartbeats();
+            Message pong = new Message();
+            pong.messageType = "PONG";
+            from.sendMessage(pong);
+          break;
+        case "PONG":
+            from.enableHeartbeats();
+          break;
+        default:
+          // Do nothing in the default
+        	Log.log(Log.WARN, "Not a valid tag: {}", msgType);
+        }
+    }
+
     /*
      * The point of the ServerThread class is to open connections with clients and
      * make corresponding Client Threads
@@ -61,20 +621,27 @@ public class Server {
         public void run() {
             try {
                 serverSocket = new ServerSocket(port);
-                while (true) {
+                while (running) {
+                    // Wait here while we're full, new clients queue up in the backlog
+                    if (clientSlots != null)
+                        clientSlots.acquire();
 
                     // Create a new client connection
-                    ClientThread c = new ClientThread(serverSocket.accept(), count);
-                    System.out.println("New client connected");
-
-                    clientMap.put(count, c);
-                    connectedClientIDs.add(count);
-                    
-                    System.out.println("Before Start");
-                    c.start();
-                    System.out.println("After Start");
+                    Socket s;
+                    try {
+                        s = serverSocket.accept();
+                    } catch (IOException e) {
+                        if (clientSlots != null)
+                            clientSlots.release();
+                        throw e;
+                    }
+                    ClientThread c = new ClientThread(s);
+                    metrics.accepted.increment();
+                    Log.log(Log.INFO, "New client connected from {}", s.getRemoteSocketAddress());
                     
-                    count++;
+                    Log.log(Log.TRACE, "Before Start");
+                    startClientThread(c);
+                    Log.log(Log.TRACE, "After Start");
                 }
             } catch (Exception e) {
             }
@@ -85,39 +652,155 @@ public class Server {
      * The main point of the ClientThread is to send and receive information to/from
      * the client.
      */
-    public class ClientThread extends Thread {
+    public class ClientThread extends Thread implements Connection {
         Socket connection;
-        int ID;
+        int ID = -1; // -1 until the hello has been read
+        Sessions.Session session;
+        byte[] alreadyRead; // bytes an IoLoop read before handing the socket over
         ObjectInputStream in;
         ObjectOutputStream out;
+        int legacyWrites = 0; // Messages written to out, for LEGACY_RESET_EVERY
+        MessageCodec codec; // null for an old client that sends plain serialization
+        DataInputStream frameIn;
+        DataOutputStream frameOut;
+        BatchingOutputStream socketOut; // under both out and frameOut
+        CountingInputStream consumed; // above the buffering, so it counts what each message took
+        OutboundQueue<EncodedMessage> outbound = newOutboundQueue();
+        volatile boolean deltas = false;
+        volatile boolean pings = false;
+        volatile boolean acks = false;
+        volatile long lastHeard = System.nanoTime();
 
-        ClientThread(Socket s, int count) {
+        ClientThread(Socket s) {
             this.connection = s;
-            this.ID = count;
+        }
+
+        ClientThread(Socket s, byte[] alreadyRead) {
+            this(s);
+            this.alreadyRead = alreadyRead;
         }
 
         public ClientThread(int ID) {
             this.ID = ID;
         }
 
+        public int clientID() {
+            return ID;
+        }
+
+        public Sessions.Session session() {
+            return session;
+        }
+
+        public void disconnect() {
+            try {
+                connection.close();
+            } catch (IOException e) {
+            }
+        }
+
+        public int queueDepth() {
+            return outbound.depth();
+        }
+
+        public boolean wantsDeltas() {
+            return deltas;
+        }
+
+        public void enableDeltas() {
+            deltas = true;
+        }
+
+        public void heard() {
+            lastHeard = System.nanoTime();
+        }
+
+        public long lastHeard() {
+            return lastHeard;
+        }
+
+        public boolean sendsHeartbeats() {
+            return pings;
+        }
+
+        public void enableHeartbeats() {
+            pings = true;
+        }
+
+        public boolean sendsAcks() {
+            return acks;
+        }
+
+        public void enableAcks() {
+            acks = true;
+        }
+
+        // Runs on whatever thread startClientThread picked, which may not be this one.
+        // However serve() ends, this is where the client is taken out again.
         public void run() {
+            try {
+                serve();
+            } finally {
+                if (ID != -1) {
+                    clientLeft(ID, this);
+                    Log.log(Log.DEBUG, "Clients: {}", clients.snapshot());
+                }
+                outbound.close();
+                disconnect();
+                metrics.disconnected.increment();
+                clientThreads.remove(Thread.currentThread());
+                if (clientSlots != null)
+                    clientSlots.release();
+            }
+        }
+
+        void serve() {
             // Connect the stream
             try {
-                in = new ObjectInputStream(connection.getInputStream());
-                out = new ObjectOutputStream(connection.getOutputStream());
+                InputStream socketIn = new CountingInputStream(connection.getInputStream(), metrics.bytesIn);
+                if (alreadyRead != null)
+                    socketIn = new SequenceInputStream(new ByteArrayInputStream(alreadyRead), socketIn);
+                BufferedInputStream buffered = new BufferedInputStream(socketIn);
+
+                // Old clients open with a serialization header, new ones with a hello
+                buffered.mark(2);
+                int first = buffered.read();
+                int second = buffered.read();
+                buffered.reset();
+                if (second < 0)
+                    throw new EOFException();
+                socketOut = new BatchingOutputStream(connection.getOutputStream(), settings.batchBytes);
+                consumed = new CountingInputStream(buffered, null);
+                long token = 0; // old clients can't resume, they always start a new session
+                if (MessageFrames.isSerializationStream((byte) first, (byte) second)) {
+                    in = new ObjectInputStream(consumed);
+                    out = new ObjectOutputStream(socketOut);
+                    out.flush(); // the header
+                }
+                else {
+                    frameIn = new DataInputStream(consumed);
+                    frameOut = new DataOutputStream(socketOut);
+                    MessageFrames.Hello hello = MessageFrames.acceptHello(frameIn, frameOut);
+                    codec = hello.codec;
+                    token = hello.token;
+                    if (hello.heartbeats)
+                        enableHeartbeats();
+                    if (hello.acks)
+                        enableAcks();
+                }
                 connection.setTcpNoDelay(true);
+                session = openSession(token);
+                ID = session.ID;
             } catch (Exception e) {
 
                 return;
             }
+            newClientThread(this::writeLoop, "writer-" + ID).start();
             
             // Send the client an initial message
-            Message msg = new Message();
-            msg.messageType = "INIT";
-            msg.receiverID = this.ID; // send the client their ID no.
-            sendMessage(msg);
+            sendMessage(initMessage(session));
             
-            System.out.println("After new message");
+            Log.log(Log.TRACE, "After new message");
             
             /*
             synchronized (connectedClientIDs) {
@@ -130,25 +813,28 @@ public class Server {
 	        		sendClientMessage(currID, msgClientList);
 	        	}
             } */
-            sendClientList();
+            clientJoined(ID, this);
             
-            System.out.println("After Client List update");
+            Log.log(Log.TRACE, "After Client List update");
 
-            System.out.println(count);
-            System.out.println(connectedClientIDs);
-            System.out.println(clientMap);
+            // The snapshot, not the registry: it's printed later on the log thread
+            Log.log(Log.DEBUG, "{} clients: {}", clients.size(), clients.snapshot());
             
             while (true) {
                 try {
                     // Wait for the client to send us data
-                    Message data = (Message) in.readObject();
-                    parseMessage(data);
+                    long before = consumed.count;
+                    Message data = codec != null ? MessageFrames.readFrame(frameIn, codec) : (Message) in.readObject();
+                    long wait = rateLimit(this, data, (int) (consumed.count - before));
+                    if (wait < 0)
+                        continue;
+                    parseMessage(this, data);
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait); // the client's sends back up in TCP meanwhile
                 } 
                 catch (Exception e) {
                 	//e.printStackTrace();
-                    clientMap.remove(ID);
-                    connectedClientIDs.remove(Integer.valueOf(this.ID));
-                    System.out.println("Client" + ID + "Disconnected");
+                    Log.log(Log.INFO, "Client {} disconnected", ID);
                     
                     /*
                     Message rmsgClientList = new Message();
@@ -156,78 +842,645 @@ public class Server {
                     rmsgClientList.clientList = connectedClientIDs;
                     sendAll(rmsgClientList);
                     */
-                    sendClientList();
-                    
-                    System.out.println(connectedClientIDs);
-                    
-                    break;
+                    break; // run() takes us out of the client list
                 }
             }
         } // End of run
 
         // sends an InfoPass object to a client
-        
+        // Only queues it; the writer thread does the actual write so a slow
+        // client never holds up whoever is sending to it
         public void sendMessage(Message msg) {
+            sendEncoded(new EncodedMessage(msg)); // encoded by the writer, same as before
+        }
+
+        public void sendEncoded(EncodedMessage msg) {
             try {
-                out.writeObject(msg);
+                if (!outbound.offer(msg, mayBlock()))
+                    disconnect(); // queue full and the policy says give up
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public boolean sendIfRoom(Message msg) {
+            return outbound.offerIfRoom(new EncodedMessage(msg));
+        }
+
+        /*
+         * The only thread that writes to this client's socket. With batching on
+         * it keeps taking messages for up to the batch window (or batchBytes)
+         * before flushing, so a burst goes out in as few segments as possible.
+         */
+        void writeLoop() {
+            long window = TimeUnit.MILLISECONDS.toNanos(settings.batchWindowMillis);
+            try {
+                EncodedMessage msg;
+                while ((msg = outbound.take()) != null) {
+                    int batched = 0;
+                    long batchStart = socketOut.written;
+                    long deadline = System.nanoTime() + window;
+                    while (msg != null) {
+                        writeMessage(msg);
+                        batched++;
+                        if (!settings.batching || socketOut.written - batchStart >= settings.batchBytes)
+                            break;
+                        long left = deadline - System.nanoTime();
+                        msg = left > 0 ? outbound.poll(left, TimeUnit.NANOSECONDS) : outbound.poll();
+                    }
+                    if (codec != null)
+                        frameOut.flush();
+                    else
+                        out.flush();
+                    recordFlush(batched);
+                    metrics.bytesOut.add(socketOut.written - batchStart);
+                }
+            } catch (InterruptedException e) {
             } catch (IOException e) {
+                disconnect();
             }
         }
-        
-        public void sendClientList() {
-        	synchronized (connectedClientIDs) {
-        		Message msgClientList = new Message();
-	            msgClientList.messageType = "CLIENT_LIST";
-	            
-	            
-	            ArrayList<Integer> clients = new ArrayList<Integer>();
-	            for(int i = 0; i < connectedClientIDs.size(); i++) {
-	            	clients.add(connectedClientIDs.get(i));
-	            }
-	            msgClientList.clientList = clients;
-	            
-	            //sendMessage(msgClientList);
-	            //sendAll(msgClientList);
-	            for (int currID : connectedClientIDs) {
-	        		clientMap.get(currID).sendMessage(msgClientList);
-	        	}
-        	}
+
+        // Into the buffer only, writeLoop decides when to flush
+        void writeMessage(EncodedMessage msg) throws IOException {
+            if (codec != null) {
+                frameOut.write(msg.frame(codec));
+            } else {
+                if (++legacyWrites % MessageFrames.LEGACY_RESET_EVERY == 0)
+                    out.reset();
+                out.writeObject(msg.msg);
+            }
         }
         
-        boolean clientExists(int num) {
-        	for (int clientNum : connectedClientIDs) {
-        		if (num == clientNum)
-        			return true;
-        	}
-        	return false;
-        }
-		
-        public void parseMessage(Message msg) {
-        	String msgType = msg.messageType;
-
-            // Switch statement to check message type
-            switch (msgType) {
-            case "INIT":
-            	System.out.println("Shouldn't be receiving this tag");
-              break;
-            case "MESSAGE":
-            	if (clientExists(msg.receiverID))
-            		sendClientMessage(msg.receiverID, msg);
-              break;
-            case "CLIENT_LIST":
-            	System.out.println("Shouldn't be receiving this tag");
-              break;
-            default:
-              // Do nothing in the default
-            	System.out.println("Not a valid tag");
+    } // End of ClientThread
+
+    /*
+     * Buffers a client's output and counts the bytes, so the writer knows
+     * how big a batch is. Only the client's writer thread touches it, so
+     * there is no lock: a BufferedOutputStream subclass would hold its
+     * monitor through every socket write, which pins a virtual writer
+     * thread to its carrier.
+     */
+    static class BatchingOutputStream extends FilterOutputStream {
+        private final byte[] buf;
+        private int count = 0;
+        long written = 0;
+
+        BatchingOutputStream(OutputStream out, int size) {
+            super(out);
+            buf = new byte[size];
+        }
+
+        public void write(int b) throws IOException {
+            if (count == buf.length)
+                flushBuffer();
+            buf[count++] = (byte) b;
+            written++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buf.length) {
+                // Bigger than the buffer, no point copying it in
+                flushBuffer();
+                out.write(b, off, len);
+            } else {
+                if (len > buf.length - count)
+                    flushBuffer();
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
             }
+            written += len;
         }
 
-    } // End of ClientThread
-    
-    public static void main(final String args[]) throws InterruptedException {
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buf, 0, count);
+                count = 0;
+            }
+        }
+    }
+
+    // Counts everything read through it, in count and in total if there is one
+    static class CountingInputStream extends FilterInputStream {
+        final LongAdder total;
+        long count = 0; // only for the thread doing the reading
+
+        CountingInputStream(InputStream in, LongAdder total) {
+            super(in);
+            this.total = total;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                counted(1);
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                counted(n);
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counted(skipped);
+            return skipped;
+        }
+
+        private void counted(long n) {
+            count += n;
+            if (total != null)
+                total.add(n);
+        }
+    }
+
+    /*
+     * One selector thread. Every IoLoop owns a set of connections and does all
+     * reads and socket writes for them. Other threads never touch the selector
+     * directly, they queue a task with execute().
+     */
+    public class IoLoop extends Thread {
+        Selector selector;
+        ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        PriorityQueue<DelayedTask> delayed = new PriorityQueue<DelayedTask>(); // only touched by this thread
+        int nextLoop = 0; // round robin position, only used by the accepting loop
+
+        IoLoop(int number) throws IOException {
+            super("io-" + number);
+            selector = Selector.open();
+        }
+
+        void acceptOn(ServerSocketChannel serverChannel) throws IOException {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        // Runs the task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Runs the task on this loop's thread once delayNanos have passed
+        void schedule(final Runnable task, long delayNanos) {
+            final long due = System.nanoTime() + delayNanos;
+            execute(() -> delayed.add(new DelayedTask(due, task)));
+        }
+
+        void register(final SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioConnection c = new NioConnection(channel, this);
+                    c.key = channel.register(selector, SelectionKey.OP_READ, c);
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException e2) {
+                    }
+                }
+            });
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    // Sleep until there is I/O, a task, or the next delayed task is due
+                    if (delayed.isEmpty()) {
+                        selector.select();
+                    } else {
+                        long wait = delayed.peek().due - System.nanoTime();
+                        if (wait > 0)
+                            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                        else
+                            selector.selectNow();
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                long now = System.nanoTime();
+                while (!delayed.isEmpty() && delayed.peek().due - now <= 0)
+                    delayed.poll().task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    NioConnection c = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            c.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            c.flushWrites();
+                    } catch (Exception e) {
+                        c.close();
+                    }
+                }
+            }
+        }
+
+        void accept(ServerSocketChannel serverChannel) {
+            try {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    if (clientSlots != null && !clientSlots.tryAcquire()) {
+                        channel.close(); // full, turn the client away
+                        metrics.rejected.increment();
+                        continue;
+                    }
+                    metrics.accepted.increment();
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    Log.log(Log.INFO, "New client connected from {}", channel.socket().getRemoteSocketAddress());
+                    ioLoops[nextLoop++ % ioLoops.length].register(channel);
+                }
+            } catch (IOException e) {
+            }
+        }
+    } // End of IoLoop
+
+    static class DelayedTask implements Comparable<DelayedTask> {
+        final long due;
+        final Runnable task;
+
+        DelayedTask(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+
+        public int compareTo(DelayedTask other) {
+            return Long.compare(due - other.due, 0);
+        }
+    }
+
+    /*
+     * A framed client being serviced by an IoLoop. Reads only happen on the
+     * loop thread; sendMessage can be called from anywhere and just queues the
+     * frame for the loop to write.
+     */
+    public class NioConnection implements Connection {
+        SocketChannel channel;
+        SelectionKey key;
+        IoLoop loop;
+        MessageCodec codec; // picked from the client's hello
+        int ID = -1; // -1 until the client's hello has been read
+        Sessions.Session session;
+        ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+        OutboundQueue<ByteBuffer> outbound = newOutboundQueue();
+        // Frames taken off outbound but not fully written yet, only touched by the loop
+        ArrayDeque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+        long writingBytes = 0;
+        ByteBuffer[] gather = new ByteBuffer[16];
+        AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        volatile boolean closed = false;
+        volatile boolean deltas = false;
+        volatile boolean pings = false;
+        volatile boolean acks = false;
+        volatile long lastHeard = System.nanoTime();
+        boolean handedOff = false; // the ClientThread owns the socket and the client slot now
+        boolean paused = false; // over its rate limit, not reading for now. Only touched by the loop
+
+        NioConnection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        public int clientID() {
+            return ID;
+        }
+
+        public Sessions.Session session() {
+            return session;
+        }
+
+        public int queueDepth() {
+            return outbound.depth();
+        }
+
+        public boolean wantsDeltas() {
+            return deltas;
+        }
+
+        public void enableDeltas() {
+            deltas = true;
+        }
+
+        public void heard() {
+            lastHeard = System.nanoTime();
+        }
+
+        public long lastHeard() {
+            return lastHeard;
+        }
+
+        public boolean sendsHeartbeats() {
+            return pings;
+        }
+
+        public void enableHeartbeats() {
+            pings = true;
+        }
+
+        public boolean sendsAcks() {
+            return acks;
+        }
+
+        public void enableAcks() {
+            acks = true;
+        }
+
+        void onReadable() throws IOException {
+            if (!readBuffer.hasRemaining())
+                growReadBuffer();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            metrics.bytesIn.add(read);
+            readBuffer.flip();
+
+            if (ID == -1) {
+                if (readBuffer.remaining() >= 2
+                        && MessageFrames.isSerializationStream(readBuffer.get(0), readBuffer.get(1))) {
+                    handOffToClientThread();
+                    return;
+                }
+                if (readBuffer.remaining() < MessageFrames.HELLO_LENGTH
+                        || readBuffer.remaining() < MessageFrames.helloLength(readBuffer.get(MessageFrames.MAGIC.length))) {
+                    readBuffer.compact();
+                    return;
+                }
+                if (!MessageFrames.isHello(readBuffer)) {
+                    close();
+                    return;
+                }
+                byte requested = readBuffer.get(MessageFrames.MAGIC.length);
+                codec = MessageFrames.pickCodec(requested);
+                if (MessageFrames.sendsHeartbeats(requested))
+                    enableHeartbeats();
+                if (MessageFrames.sendsAcks(requested))
+                    enableAcks();
+                long token = 0;
+                if (MessageFrames.helloLength(requested) > MessageFrames.HELLO_LENGTH)
+                    token = readBuffer.getLong(MessageFrames.HELLO_LENGTH);
+                readBuffer.position(MessageFrames.helloLength(requested));
+                queueWrite(ByteBuffer.wrap(MessageFrames.hello(codec.id)));
+                connected(token);
+            }
+
+            parseFrames();
+            readBuffer.compact();
+        }
+
+        // Parses whole frames out of readBuffer (flipped) until it runs out or we pause
+        void parseFrames() throws IOException {
+            Message msg;
+            int start = readBuffer.position();
+            while (!closed && !paused && (msg = MessageFrames.nextFrame(readBuffer, codec)) != null) {
+                long wait = rateLimit(this, msg, readBuffer.position() - start);
+                start = readBuffer.position();
+                if (wait < 0)
+                    continue;
+                parseMessage(this, msg);
+                if (wait > 0)
+                    pause(wait);
+            }
+        }
+
+        /*
+         * Stops reading from the client for nanos. Frames already in
+         * readBuffer wait there; the client's sends back up in TCP.
+         */
+        void pause(long nanos) {
+            paused = true;
+            if (key.isValid())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            loop.schedule(this::resume, nanos);
+        }
+
+        void resume() {
+            paused = false;
+            if (closed || !key.isValid())
+                return;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            readBuffer.flip();
+            try {
+                parseFrames();
+                readBuffer.compact();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Same steps ClientThread.run() does once its streams are up
+        void connected(long token) {
+            session = openSession(token);
+            ID = session.ID;
+            sendMessage(initMessage(session));
+            clientJoined(ID, this);
+        }
+
+        void growReadBuffer() throws IOException {
+            if (readBuffer.capacity() >= MessageFrames.MAX_FRAME + 4)
+                throw new IOException("Frame too big");
+            ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+
+        /*
+         * An old client that speaks plain serialization. There is no way to
+         * decode that stream without blocking, so give the socket its own
+         * ClientThread like the blocking server would.
+         */
+        void handOffToClientThread() {
+            final byte[] alreadyRead = new byte[readBuffer.remaining()];
+            readBuffer.get(alreadyRead);
+            handedOff = true;
+            key.cancel();
+            // The channel can only go back to blocking once the cancelled key has
+            // been dropped by the next select, so do it from a task
+            loop.execute(() -> {
+                try {
+                    channel.configureBlocking(true);
+                    ClientThread c = new ClientThread(channel.socket(), alreadyRead);
+                    startClientThread(c);
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException e2) {
+                    }
+                    if (clientSlots != null)
+                        clientSlots.release();
+                }
+            });
+        }
+
+        public void sendMessage(Message msg) {
+            try {
+                queueWrite(MessageFrames.frame(msg, codec));
+            } catch (IOException e) {
+            }
+        }
+
+        public void sendEncoded(EncodedMessage msg) {
+            try {
+                queueWrite(msg.frameBuffer(codec));
+            } catch (IOException e) {
+            }
+        }
+
+        public boolean sendIfRoom(Message msg) {
+            try {
+                if (!outbound.offerIfRoom(MessageFrames.frame(msg, codec)))
+                    return false;
+            } catch (IOException e) {
+                return false;
+            }
+            scheduleFlush();
+            return true;
+        }
+
+        void queueWrite(ByteBuffer frame) {
+            boolean queued;
+            try {
+                queued = outbound.offer(frame, mayBlock());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!queued) {
+                disconnect(); // queue full and the policy says give up
+                return;
+            }
+            scheduleFlush();
+        }
+
+        void scheduleFlush() {
+            // Only one flush needs to be on its way at a time
+            if (flushScheduled.compareAndSet(false, true)) {
+                if (settings.batching && settings.batchWindowMillis > 0)
+                    loop.schedule(this::flushWrites, TimeUnit.MILLISECONDS.toNanos(settings.batchWindowMillis));
+                else if (Thread.currentThread() == loop)
+                    flushWrites();
+                else
+                    loop.execute(this::flushWrites);
+            }
+        }
+
+        /*
+         * Writes as much as the socket will take, only on the loop thread.
+         * With batching on, everything queued (up to batchBytes at a time)
+         * goes out in one gathering write instead of one write per frame.
+         */
+        void flushWrites() {
+            flushScheduled.set(false);
+            if (closed)
+                return;
+            int limit = settings.batching ? settings.batchBytes : 1;
+            try {
+                while (true) {
+                    int taken = 0;
+                    ByteBuffer frame;
+                    while (writingBytes < limit && (frame = outbound.poll()) != null) {
+                        writing.add(frame);
+                        writingBytes += frame.remaining();
+                        taken++;
+                    }
+                    if (writing.isEmpty())
+                        break;
+                    if (gather.length < writing.size())
+                        gather = new ByteBuffer[writing.size() * 2];
+                    int count = writing.size();
+                    writing.toArray(gather);
+                    long written = channel.write(gather, 0, count);
+                    writingBytes -= written;
+                    metrics.bytesOut.add(written);
+                    Arrays.fill(gather, 0, count, null);
+                    while (!writing.isEmpty() && !writing.peek().hasRemaining())
+                        writing.poll();
+                    if (taken > 0)
+                        recordFlush(taken);
+                    if (!writing.isEmpty())
+                        break; // socket is full, wait for OP_WRITE
+                }
+                if (key != null && key.isValid()) {
+                    int read = paused ? 0 : SelectionKey.OP_READ;
+                    key.interestOps(writing.isEmpty() ? read : read | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        public void disconnect() {
+            loop.execute(this::close);
+        }
+
+        // Only on the loop thread
+        void close() {
+            if (closed || handedOff)
+                return;
+            closed = true;
+            metrics.disconnected.increment();
+            outbound.close();
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            if (clientSlots != null)
+                clientSlots.release();
+            if (ID != -1) {
+                Log.log(Log.INFO, "Client {} disconnected", ID);
+                clientLeft(ID, this);
+            }
+        }
+    } // End of NioConnection
+
+    /*
+     * Usage: java Server [port] [--nio <io threads>] [--virtual] [--max-clients <n>]
+     *                    [--queue-size <n>] [--overflow drop-oldest|disconnect|block]
+     *                    [--batch <window ms>] [--batch-bytes <n>] [--full-lists]
+     *                    [--offline-backlog <n>] [--offline-ttl <s>] [--offline-memory <n>]
+     *                    [--offline-dir <dir>] [--session-ttl <s>]
+     *                    [--audit-log <dir>] [--audit-log-sync always|never|<ms>]
+     *                    [--audit-log-segment-mb <n>] [--audit-log-segments <n>]
+     *                    [--ping-interval <s>] [--dead-after <s>]
+     *                    [--metrics-interval <s>] [--metrics-port <port>]
+     *                    [--log-level trace|debug|info|warn|error|off]
+     *                    [--rate-messages <n/s>] [--rate-bytes <n/s>] [--rate-burst <s>]
+     *                    [--rate-penalty drop|delay|disconnect]
+     * Without --nio every client gets its own thread like before.
+     * --virtual puts those threads on virtual threads (Java 21+).
+     * Messages for offline clients that don't fit in memory go to --offline-dir,
+     * by default chat-server-<port>-pending in the system temp directory;
+     * any *.pending files in it are deleted on startup. --offline-backlog 0
+     * turns keeping them off.
+     */
+    public static void main(final String args[]) throws Exception {
     	System.out.println("Server Running");
-    	Server theServer = new Server(5555);
+    	ServerSettings settings = ServerSettings.parse(args);
+    	Log.setLevel(settings.logLevel);
+    	final Server theServer = new Server(settings);
+    	Runtime.getRuntime().addShutdownHook(new Thread(() -> theServer.shutdown(2000)));
     }
 
 } // End of Server class
@@ -238,4 +1491,8 @@ class Message implements Serializable {
 	  public String message;
 	  public String messageType;
 	  public ArrayList<Integer> clientList;
+	  public long listVersion; // CLIENT_LIST/JOIN/LEAVE: which version of the client list this is
+	  public long token; // INIT: hand this back in the hello to keep the same ID after a reconnect
+	  public long messageID; // MESSAGE/ACK/NACK: set by the sender, unique among its messages, 0 for none
+	  public String channel; // MESSAGE: the group it was sent to, null for one receiver. SUBSCRIBE/UNSUBSCRIBE: which group
 }
@@ -0,0 +1,169 @@
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+ * What the Server has been doing: connections, messages, bytes, how far
+ * behind each client is and how long routing takes.
+ *
+ * Counters are LongAdders, so reader threads and selector threads all
+ * recording at once never fight over one cache line. The backlogs are
+ * read from the live connections when a snapshot is taken.
+ *
+ * A snapshot can be printed every so often (text()) and/or served in the
+ * Prometheus text format at http://localhost:<port>/metrics.
+ */
+class ServerMetrics {
+
+    final LongAdder accepted = new LongAdder();
+    final LongAdder rejected = new LongAdder(); // turned away, the server was full
+    final LongAdder disconnected = new LongAdder();
+    final LongAdder received = new LongAdder(); // messages of any type from clients
+    final LongAdder routed = new LongAdder(); // MESSAGE copies handed to a connection
+    final LongAdder held = new LongAdder(); // MESSAGE copies kept for an offline client
+    final LongAdder undeliverable = new LongAdder(); // MESSAGEs nobody could be found for
+    final LongAdder limited = new LongAdder(); // messages over their sender's rate limit
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+
+    // From reading a MESSAGE to it being queued for every receiver
+    final LatencyHistogram routeLatency = new LatencyHistogram();
+    final LatencyHistogram channelLatency = new LatencyHistogram();
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Supplier<ClientRegistry.Snapshot<Server.Connection>> connections;
+    private Thread reporter;
+    private HttpServer http;
+
+    ServerMetrics(Supplier<ClientRegistry.Snapshot<Server.Connection>> connections) {
+        this.connections = connections;
+    }
+
+    // Logs text() every seconds on a daemon thread
+    void startReports(final int seconds) {
+        reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(seconds * 1000L);
+                    Log.log(Log.INFO, "Metrics\n{}", text());
+                }
+            } catch (InterruptedException e) {
+            }
+        }, "metrics");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    // Serves prometheus() on port, only to this machine
+    void serve(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+    }
+
+    void stop() {
+        if (reporter != null)
+            reporter.interrupt();
+        if (http != null)
+            http.stop(0);
+    }
+
+    // A few lines for the console
+    String text() {
+        ClientRegistry.Snapshot<Server.Connection> all = connections.get();
+        long backlog = 0;
+        int deepest = 0;
+        int deepestID = -1;
+        for (int i = 0; i < all.size; i++) {
+            int depth = all.connectionAt(i).queueDepth();
+            backlog += depth;
+            if (depth > deepest) {
+                deepest = depth;
+                deepestID = all.idAt(i);
+            }
+        }
+        StringBuilder s = new StringBuilder();
+        s.append("Clients: ").append(all.size).append(" connected, ")
+                .append(accepted.sum()).append(" accepted, ")
+                .append(rejected.sum()).append(" rejected, ")
+                .append(disconnected.sum()).append(" disconnected\n");
+        s.append("Messages: ").append(received.sum()).append(" in, ")
+                .append(routed.sum()).append(" routed, ")
+                .append(held.sum()).append(" held, ")
+                .append(undeliverable.sum()).append(" undeliverable, ")
+                .append(limited.sum()).append(" over rate limit\n");
+        s.append("Bytes: ").append(bytesIn.sum()).append(" in, ").append(bytesOut.sum()).append(" out\n");
+        s.append("Backlog: ").append(backlog).append(" queued");
+        if (deepestID != -1)
+            s.append(", deepest ").append(deepest).append(" for client ").append(deepestID);
+        s.append('\n');
+        s.append("Route: ").append(routeLatency).append('\n');
+        s.append("Channel route: ").append(channelLatency);
+        return s.toString();
+    }
+
+    // Everything in the Prometheus text exposition format
+    String prometheus() {
+        StringBuilder s = new StringBuilder();
+        counter(s, "chat_connections_accepted_total", "Connections accepted", accepted);
+        counter(s, "chat_connections_rejected_total", "Connections turned away because the server was full", rejected);
+        counter(s, "chat_connections_closed_total", "Connections closed", disconnected);
+        counter(s, "chat_messages_received_total", "Messages of any type received from clients", received);
+        counter(s, "chat_messages_routed_total", "MESSAGE copies queued for a connected client", routed);
+        counter(s, "chat_messages_held_total", "MESSAGE copies kept for an offline client", held);
+        counter(s, "chat_messages_undeliverable_total", "MESSAGEs with no receiver", undeliverable);
+        counter(s, "chat_messages_rate_limited_total", "Messages over their sender's rate limit", limited);
+        counter(s, "chat_bytes_received_total", "Bytes read from clients", bytesIn);
+        counter(s, "chat_bytes_sent_total", "Bytes written to clients", bytesOut);
+
+        ClientRegistry.Snapshot<Server.Connection> all = connections.get();
+        s.append("# HELP chat_clients_connected Clients connected now\n");
+        s.append("# TYPE chat_clients_connected gauge\n");
+        s.append("chat_clients_connected ").append(all.size).append('\n');
+        s.append("# HELP chat_client_backlog Messages waiting to be written to a client\n");
+        s.append("# TYPE chat_client_backlog gauge\n");
+        for (int i = 0; i < all.size; i++) {
+            s.append("chat_client_backlog{client=\"").append(all.idAt(i)).append("\"} ")
+                    .append(all.connectionAt(i).queueDepth()).append('\n');
+        }
+
+        summary(s, "chat_route_latency_seconds", "Time from reading a MESSAGE to queueing it for its receiver",
+                routeLatency);
+        summary(s, "chat_channel_route_latency_seconds",
+                "Time from reading a channel MESSAGE to queueing it for every member", channelLatency);
+        return s.toString();
+    }
+
+    private static void counter(StringBuilder s, String name, String help, LongAdder value) {
+        s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        s.append("# TYPE ").append(name).append(" counter\n");
+        s.append(name).append(' ').append(value.sum()).append('\n');
+    }
+
+    private static void summary(StringBuilder s, String name, String help, LatencyHistogram latency) {
+        s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        s.append("# TYPE ").append(name).append(" summary\n");
+        long[] values = latency.percentiles(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            s.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+                    .append(values[i] / 1e9).append('\n');
+        }
+        long count = latency.count();
+        s.append(name).append("_sum ").append(latency.mean() * count / 1e9).append('\n');
+        s.append(name).append("_count ").append(count).append('\n');
+    }
+}
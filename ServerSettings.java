@@ -0,0 +1,197 @@
+
+import java.io.File;
+
+/*
+ * Everything that can be changed about how the Server runs.
+ * Filled in from the command line by parse(), see Server.main for usage.
+ */
+class ServerSettings {
+
+    int port = 5555;
+
+    // > 0 means non-blocking mode with this many selector threads
+    int ioThreads = 0;
+
+    // Run each ClientThread on a virtual thread instead of a platform thread (Java 21+)
+    boolean virtualThreads = false;
+
+    // Most clients connected at once, 0 for no limit
+    int maxClients = 0;
+
+    // Messages that can wait to be written to one client, and what to do past that
+    int queueSize = 256;
+    OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP_OLDEST;
+
+    /*
+     * Batching: a writer waits up to batchWindowMillis for more messages to
+     * the same client (stopping early at batchBytes) and flushes them all at
+     * once. Off means one write and flush per message.
+     */
+    boolean batching = false;
+    int batchWindowMillis = 0;
+    int batchBytes = 8192;
+
+    // Always send every client the whole CLIENT_LIST instead of JOIN/LEAVE deltas
+    boolean fullLists = false;
+
+    /*
+     * Messages for clients that aren't connected: at most offlineBacklog per
+     * recipient (0 turns it off), dropped after offlineTtlSeconds. Up to
+     * offlineMemory of them are held in memory in total, the rest are
+     * spilled to files in offlineDir. Without --offline-dir that is a
+     * directory of this server's own in the system temp directory, named
+     * after the port, rather than anywhere the server happens to be started
+     * from: the spill files left in it are deleted on startup.
+     */
+    int offlineBacklog = 100;
+    long offlineTtlSeconds = 24 * 60 * 60;
+    int offlineMemory = 1024;
+    String offlineDir = null;
+
+    // How long a disconnected client can still come back with its old ID
+    long sessionTtlSeconds = 24 * 60 * 60;
+
+    /*
+     * Audit log of routed messages, off unless auditLogDir is set. Only ever
+     * written, see MessageAuditLog. auditLogSync is
+     * MessageAuditLog.SYNC_ALWAYS, SYNC_NEVER or a period in ms.
+     */
+    String auditLogDir = null;
+    int auditLogSync = 1000;
+    int auditLogSegmentBytes = 16 * 1024 * 1024;
+    int auditLogSegments = 8;
+
+    /*
+     * Heartbeats: a client we haven't heard from for pingIntervalSeconds is
+     * sent a PING, one silent for deadAfterSeconds is disconnected (only
+     * clients that speak PING/PONG, see HeartbeatWheel). 0 turns it off.
+     */
+    int pingIntervalSeconds = 15;
+    int deadAfterSeconds = 45;
+
+    /*
+     * Metrics (see ServerMetrics): printed every metricsIntervalSeconds and
+     * served for Prometheus on localhost:metricsPort. 0 turns either off.
+     */
+    int metricsIntervalSeconds = 0;
+    int metricsPort = 0;
+
+    /*
+     * Flood protection (see RateLimiter): each client may send rateMessages
+     * messages and rateBytes bytes a second, in bursts of up to
+     * rateBurstSeconds worth. 0 means no limit on that one.
+     */
+    double rateMessages = 0;
+    double rateBytes = 0;
+    double rateBurstSeconds = 2;
+    RateLimiter.Penalty ratePenalty = RateLimiter.Penalty.DROP;
+
+    // Lines below this level aren't logged, see Log
+    String logLevel = "info";
+
+    File offlineDir() {
+        if (offlineDir != null)
+            return new File(offlineDir);
+        return new File(System.getProperty("java.io.tmpdir"), "chat-server-" + port + "-pending");
+    }
+
+    static ServerSettings parse(String[] args) {
+        ServerSettings settings = new ServerSettings();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--nio":
+                settings.ioThreads = Integer.parseInt(args[++i]);
+                break;
+            case "--virtual":
+                settings.virtualThreads = true;
+                break;
+            case "--max-clients":
+                settings.maxClients = Integer.parseInt(args[++i]);
+                break;
+            case "--queue-size":
+                settings.queueSize = Integer.parseInt(args[++i]);
+                break;
+            case "--overflow": // drop-oldest, disconnect or block
+                settings.overflow = OutboundQueue.Overflow.valueOf(args[++i].toUpperCase().replace('-', '_'));
+                break;
+            case "--batch": // window in ms, 0 just coalesces what is already queued
+                settings.batching = true;
+                settings.batchWindowMillis = Integer.parseInt(args[++i]);
+                break;
+            case "--batch-bytes":
+                settings.batchBytes = Integer.parseInt(args[++i]);
+                break;
+            case "--full-lists":
+                settings.fullLists = true;
+                break;
+            case "--offline-backlog":
+                settings.offlineBacklog = Integer.parseInt(args[++i]);
+                break;
+            case "--offline-ttl": // seconds
+                settings.offlineTtlSeconds = Long.parseLong(args[++i]);
+                break;
+            case "--offline-memory":
+                settings.offlineMemory = Integer.parseInt(args[++i]);
+                break;
+            case "--offline-dir":
+                settings.offlineDir = args[++i];
+                break;
+            case "--session-ttl": // seconds
+                settings.sessionTtlSeconds = Long.parseLong(args[++i]);
+                break;
+            case "--audit-log":
+            case "--journal": // what it was called before
+                settings.auditLogDir = args[++i];
+                break;
+            case "--audit-log-sync": // always, never or every n ms
+            case "--journal-sync":
+                String sync = args[++i];
+                if (sync.equals("always"))
+                    settings.auditLogSync = MessageAuditLog.SYNC_ALWAYS;
+                else if (sync.equals("never"))
+                    settings.auditLogSync = MessageAuditLog.SYNC_NEVER;
+                else
+                    settings.auditLogSync = Integer.parseInt(sync);
+                break;
+            case "--audit-log-segment-mb":
+            case "--journal-segment-mb":
+                settings.auditLogSegmentBytes = Integer.parseInt(args[++i]) * 1024 * 1024;
+                break;
+            case "--audit-log-segments":
+            case "--journal-segments":
+                settings.auditLogSegments = Integer.parseInt(args[++i]);
+                break;
+            case "--ping-interval": // seconds, 0 for no heartbeats
+                settings.pingIntervalSeconds = Integer.parseInt(args[++i]);
+                break;
+            case "--dead-after": // seconds
+                settings.deadAfterSeconds = Integer.parseInt(args[++i]);
+                break;
+            case "--metrics-interval": // seconds
+                settings.metricsIntervalSeconds = Integer.parseInt(args[++i]);
+                break;
+            case "--metrics-port":
+                settings.metricsPort = Integer.parseInt(args[++i]);
+                break;
+            case "--rate-messages": // per second
+                settings.rateMessages = Double.parseDouble(args[++i]);
+                break;
+            case "--rate-bytes": // per second
+                settings.rateBytes = Double.parseDouble(args[++i]);
+                break;
+            case "--rate-burst": // seconds
+                settings.rateBurstSeconds = Double.parseDouble(args[++i]);
+                break;
+            case "--rate-penalty": // drop, delay or disconnect
+                settings.ratePenalty = RateLimiter.Penalty.valueOf(args[++i].toUpperCase());
+                break;
+            case "--log-level":
+                settings.logLevel = args[++i];
+                break;
+            default:
+                settings.port = Integer.parseInt(args[i]);
+            }
+        }
+        return settings;
+    }
+}
@@ -0,0 +1,395 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+ * Checks the pieces of the server that can go wrong without a socket in
+ * sight, each on its own with a fake Connection standing in for a client.
+ *
+ * Plain main like CodecTests: prints each check and exits with 1 if any
+ * failed.
+ *
+ * Usage: java ServerTests
+ * Compile it with the server sources.
+ */
+class ServerTests {
+
+    private static int failed = 0;
+
+    static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok   " : "FAIL ") + what);
+        if (!ok)
+            failed++;
+    }
+
+    // Waits up to 2s for ok to come true
+    static boolean eventually(java.util.function.BooleanSupplier ok) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!ok.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /*
+     * A client as far as the server can tell: an ID, an outbound queue and
+     * when it was last heard from. Whatever is sent just waits in the queue
+     * for the test to look at; sending, if set, sees each message first.
+     */
+    static class FakeConnection implements Server.Connection {
+        final int ID;
+        final OutboundQueue<Message> outbound;
+        volatile long lastHeard = System.nanoTime();
+        volatile boolean disconnected = false;
+        volatile Consumer<Message> sending;
+
+        FakeConnection(int ID, int queueSize, OutboundQueue.Overflow overflow) {
+            this.ID = ID;
+            this.outbound = new OutboundQueue<Message>(queueSize, overflow);
+        }
+
+        public int clientID() { return ID; }
+        public void sendMessage(Message msg) {
+            if (sending != null)
+                sending.accept(msg);
+            try {
+                if (!outbound.offer(msg, true))
+                    disconnect();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        public void sendEncoded(EncodedMessage msg) { sendMessage(msg.msg); }
+        public boolean sendIfRoom(Message msg) { return outbound.offerIfRoom(msg); }
+        public void disconnect() {
+            disconnected = true;
+            outbound.close();
+        }
+        public int queueDepth() { return outbound.depth(); }
+        public boolean wantsDeltas() { return true; }
+        public void enableDeltas() {}
+        public void heard() { lastHeard = System.nanoTime(); }
+        public long lastHeard() { return lastHeard; }
+        public boolean sendsHeartbeats() { return true; }
+        public void enableHeartbeats() {}
+        public boolean sendsAcks() { return true; }
+        public void enableAcks() {}
+        public Sessions.Session session() { return null; }
+    }
+
+    static Message message(String type) {
+        Message msg = new Message();
+        msg.messageType = type;
+        return msg;
+    }
+
+    static Message message(int to, String text) {
+        Message msg = message("MESSAGE");
+        msg.receiverID = to;
+        msg.message = text;
+        return msg;
+    }
+
+    // The text of everything queued for c, taking it out
+    static String sent(FakeConnection c) {
+        StringBuilder texts = new StringBuilder();
+        Message msg;
+        while ((msg = c.outbound.poll()) != null)
+            texts.append(texts.length() == 0 ? "" : " ").append(msg.message);
+        return texts.toString();
+    }
+
+    static File tempDir() throws IOException {
+        File dir = Files.createTempDirectory("servertests").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    static void clientRegistry() throws Exception {
+        ClientRegistry<String> clients = new ClientRegistry<String>();
+        int a = clients.nextID(), b = clients.nextID(), c = clients.nextID();
+        check(a == 1 && b == 2 && c == 3 && clients.issued(3) && !clients.issued(4) && !clients.issued(0),
+                "registry: IDs go up from 1, issued knows which are out");
+
+        ClientRegistry.Snapshot<String> before = clients.snapshot();
+        clients.put(a, "a");
+        clients.put(b, "b");
+        ClientRegistry.Snapshot<String> now = clients.put(c, "c");
+        check(now.version == 3 && now.toString().equals("[1, 2, 3]") && clients.get(b).equals("b"),
+                "registry: joins in order, one version each");
+        check(before.size == 0 && before.get(a) == null, "registry: an old snapshot doesn't change");
+
+        now = clients.put(b, "b again");
+        check(now.version == 3 && clients.get(b).equals("b again") && now.idAt(1) == b,
+                "registry: replacing a connection keeps its place and the version");
+        check(clients.remove(b, "b") == null && clients.contains(b), "registry: remove needs the connection that is there");
+        now = clients.remove(b, "b again");
+        check(now != null && now.version == 4 && now.toString().equals("[1, 3]") && clients.get(b) == null
+                && clients.issued(b), "registry: removed, but the ID still counts as issued");
+        clients.retire(b);
+        check(!clients.issued(b) && clients.issued(a) && clients.issued(c), "registry: a retired ID isn't issued");
+
+        // Enough to grow the index a few times, with IDs that collide in a small table
+        ClientRegistry<Integer> many = new ClientRegistry<Integer>();
+        for (int i = 0; i < 1000; i++)
+            many.put(i * 64, i);
+        boolean found = true;
+        for (int i = 0; i < 1000; i++)
+            found &= many.get(i * 64) == i;
+        check(found && many.get(64 * 1000) == null && many.get(1) == null && many.size() == 1000,
+                "registry: every ID found in a big table, nothing else");
+
+        // Joins from many threads at once: the CAS retries, nothing is lost
+        ClientRegistry<Integer> raced = new ClientRegistry<Integer>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    int ID = raced.nextID();
+                    Integer conn = ID; // remove goes by identity, so the same box both times
+                    raced.put(ID, conn);
+                    if (ID % 2 == 0)
+                        raced.remove(ID, conn);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        ClientRegistry.Snapshot<Integer> last = raced.snapshot();
+        check(last.size == 800 && last.version == 2400 && raced.get(1) == 1 && raced.get(2) == null,
+                "registry: concurrent joins and leaves all land");
+    }
+
+    static void rateLimiter() {
+        long ms = 1000000;
+        long t = 1000 * ms; // any start, every take() is told the time
+        RateLimiter drop = new RateLimiter(10, 0, 1, RateLimiter.Penalty.DROP);
+        boolean burst = true;
+        for (int i = 0; i < 10; i++)
+            burst &= drop.take(1, 100, t) == 0;
+        check(burst, "rate: a burst's worth goes straight through");
+        long wait = drop.take(1, 100, t);
+        check(wait >= 99 * ms && wait <= 101 * ms, "rate: one over has to wait for one token");
+        check(drop.take(1, 100, t + 50 * ms) > 0 && drop.take(1, 100, t + 100 * ms) == 0,
+                "rate: dropped ones cost nothing, it is back in time");
+        check(drop.take(2, 100, t) == 0, "rate: every client has its own bucket");
+        check(drop.take(1, 100, t + 10000 * ms) == 0 && drop.take(1, 100, t + 10000 * ms) == 0,
+                "rate: a quiet client fills up again");
+
+        RateLimiter bytes = new RateLimiter(0, 1000, 1, RateLimiter.Penalty.DROP);
+        check(bytes.take(1, 600, t) == 0, "rate: bytes within the bucket");
+        wait = bytes.take(1, 600, t);
+        check(wait >= 199 * ms && wait <= 201 * ms, "rate: bytes over wait for what is missing");
+        check(bytes.take(2, 5000, t) == 0 && bytes.take(2, 5000, t) > 0,
+                "rate: bigger than the bucket goes through when it is full, and only then");
+
+        RateLimiter delay = new RateLimiter(10, 0, 1, RateLimiter.Penalty.DELAY);
+        for (int i = 0; i < 10; i++)
+            delay.take(1, 100, t);
+        long first = delay.take(1, 100, t);
+        long second = delay.take(1, 100, t);
+        check(first >= 99 * ms && first <= 101 * ms && second >= 199 * ms && second <= 201 * ms,
+                "rate: with delay every message over is paid for, the debt adds up");
+        delay.forget(1);
+        check(delay.take(1, 100, t) == 0, "rate: a forgotten client starts full again");
+    }
+
+    static void pendingMessages() throws Exception {
+        // Two in memory, the rest spilled to disk
+        PendingMessages pending = new PendingMessages(tempDir(), 100, 60000, 2);
+        // Added to from the pending-io thread
+        CopyOnWriteArrayList<Server.Connection> registered = new CopyOnWriteArrayList<Server.Connection>();
+        CopyOnWriteArrayList<Server.Connection> announced = new CopyOnWriteArrayList<Server.Connection>();
+        for (int i = 0; i < 5; i++)
+            pending.store(1, message(1, "m" + i));
+        check(pending.backlog(1) == 5, "pending: memory and disk both count");
+
+        FakeConnection c = new FakeConnection(1, 64, OutboundQueue.Overflow.DROP_OLDEST);
+        // Something for 1 comes in while its backlog is going out, it has to go after
+        c.sending = msg -> {
+            if ("m0".equals(msg.message))
+                pending.store(1, message(1, "late"));
+        };
+        pending.drainTo(1, c, () -> {
+            registered.add(c);
+            return () -> announced.add(c);
+        });
+        check(eventually(() -> announced.size() == 1) && registered.size() == 1,
+                "pending: registered once the file has been read back");
+        check(sent(c).equals("m0 m1 m2 m3 m4 late"), "pending: backlog goes out oldest first, late one last");
+        pending.store(1, message(1, "direct"));
+        check(sent(c).equals("direct") && pending.backlog(1) == 0, "pending: once drained it goes straight through");
+        check(!pending.offline(1, c), "pending: offline after registering says it was registered");
+
+        // Leaves while its backlog is going out: never registered, the rest waits for next time
+        for (int i = 0; i < 5; i++)
+            pending.store(2, message(2, "m" + i));
+        FakeConnection leaving = new FakeConnection(2, 64, OutboundQueue.Overflow.DROP_OLDEST);
+        final boolean[] neverRegistered = new boolean[1];
+        leaving.sending = msg -> {
+            if ("m0".equals(msg.message))
+                neverRegistered[0] = pending.offline(2, leaving);
+        };
+        pending.drainTo(2, leaving, () -> {
+            registered.add(leaving);
+            return () -> {};
+        });
+        Thread.sleep(100);
+        check(neverRegistered[0] && !registered.contains(leaving), "pending: leaving mid-drain is never registered");
+        check(sent(leaving).equals("m0 m1") && pending.backlog(2) == 3, "pending: what wasn't sent is still kept");
+
+        FakeConnection back = new FakeConnection(2, 64, OutboundQueue.Overflow.DROP_OLDEST);
+        pending.drainTo(2, back, () -> {
+            registered.add(back);
+            return () -> {};
+        });
+        check(eventually(() -> registered.contains(back)) && sent(back).equals("m2 m3 m4"),
+                "pending: the rest goes to the next connection");
+
+        // Too old by the time anyone asks
+        PendingMessages shortLived = new PendingMessages(tempDir(), 3, 50, 100);
+        for (int i = 0; i < 4; i++)
+            shortLived.store(3, message(3, "m" + i));
+        check(shortLived.backlog(3) == 3, "pending: a full backlog drops the oldest");
+        Thread.sleep(100);
+        FakeConnection late = new FakeConnection(3, 64, OutboundQueue.Overflow.DROP_OLDEST);
+        shortLived.drainTo(3, late, () -> () -> {});
+        check(sent(late).isEmpty() && shortLived.toString().contains("3 expired"), "pending: expired messages aren't sent");
+    }
+
+    static void sessions() throws Exception {
+        ClientRegistry<Server.Connection> clients = new ClientRegistry<Server.Connection>();
+        File dir = tempDir();
+        PendingMessages pending = new PendingMessages(dir, 100, 60000, 1);
+        Sessions sessions = new Sessions(clients, 50);
+        ArrayList<Integer> expired = new ArrayList<Integer>();
+        // What Server.sessionExpired does with the parts it has here
+        sessions.onExpire(ID -> {
+            expired.add(ID);
+            clients.retire(ID);
+            pending.forget(ID);
+        });
+
+        Sessions.Session first = sessions.open(0);
+        Sessions.Session second = sessions.open(0);
+        check(first.ID != second.ID && first.token != second.token && first.token != 0, "sessions: new IDs and tokens");
+        check(sessions.open(first.token) == first, "sessions: a token gets its ID back");
+        check(sessions.open(12345).ID != first.ID, "sessions: an unknown token gets a new ID");
+
+        first.remember(7);
+        check(first.seen(7) && !first.seen(8) && !second.seen(7), "sessions: resends are spotted per session");
+        for (int i = 0; i < Sessions.RECENT; i++)
+            first.remember(100 + i);
+        check(!first.seen(7) && first.seen(100), "sessions: only the last RECENT are remembered");
+
+        // first goes away with something kept for it, some of it on disk
+        sessions.left(first.ID);
+        pending.store(first.ID, message(first.ID, "a"));
+        pending.store(first.ID, message(first.ID, "b"));
+        check(clients.issued(first.ID) && pending.backlog(first.ID) == 2, "sessions: kept while it could come back");
+        check(eventually(() -> new File(dir, first.ID + ".pending").exists()), "sessions: one of them spilled");
+        Thread.sleep(100);
+        Sessions.Session third = sessions.open(0); // expiry runs when a session is opened
+        check(expired.contains(first.ID) && !expired.contains(second.ID), "sessions: only the one that left expires");
+        check(!clients.issued(first.ID) && clients.issued(second.ID) && clients.issued(third.ID),
+                "sessions: an expired ID no longer counts as issued");
+        check(pending.backlog(first.ID) == 0, "sessions: its backlog is dropped");
+        check(sessions.open(first.token).ID != first.ID, "sessions: its token doesn't get the ID back");
+        File spilled = new File(dir, first.ID + ".pending");
+        check(eventually(() -> !spilled.exists()) && pending.toString().contains("2 expired"),
+                "sessions: the spill file goes too, the messages count as expired");
+    }
+
+    static void auditLog() throws Exception {
+        File dir = tempDir();
+        // Small segments, so a thousand messages go through several of them
+        MessageAuditLog log = new MessageAuditLog(dir, 4096, 3, MessageAuditLog.SYNC_ALWAYS);
+        for (int i = 0; i < 1000; i++)
+            log.append(message(2, "m" + i));
+        check(log.appended() == 1000, "audit log: counts what was appended");
+        log.close();
+        log.append(message(2, "after close"));
+        check(log.appended() == 1000, "audit log: nothing is appended once closed");
+
+        ArrayList<String> texts = new ArrayList<String>();
+        MessageAuditLog.read(dir, msg -> texts.add(msg.message));
+        check(!texts.isEmpty() && texts.size() < 1000 && texts.get(texts.size() - 1).equals("m999"),
+                "audit log: only the newest segments are kept");
+        boolean inOrder = true;
+        int first = Integer.parseInt(texts.get(0).substring(1));
+        for (int i = 0; i < texts.size(); i++)
+            inOrder &= texts.get(i).equals("m" + (first + i));
+        check(inOrder, "audit log: read back oldest first, nothing missing in between");
+
+        // Opened again it carries on after the last record
+        log = new MessageAuditLog(dir, 4096, 3, MessageAuditLog.SYNC_NEVER);
+        log.append(message(2, "next run"));
+        log.close();
+        texts.clear();
+        MessageAuditLog.read(dir, msg -> texts.add(msg.message));
+        check(texts.get(texts.size() - 1).equals("next run") && texts.get(texts.size() - 2).equals("m999"),
+                "audit log: a new run appends after the old records");
+    }
+
+    static void heartbeatWheel() throws InterruptedException {
+        // Stalled first, so it is ahead of the others in their slot
+        FakeConnection stalled = new FakeConnection(1, 1, OutboundQueue.Overflow.BLOCK);
+        stalled.sendMessage(message("MESSAGE"));
+        FakeConnection gone = new FakeConnection(2, 8, OutboundQueue.Overflow.BLOCK);
+        FakeConnection alive = new FakeConnection(3, 8, OutboundQueue.Overflow.BLOCK);
+
+        HeartbeatWheel wheel = new HeartbeatWheel(TimeUnit.MILLISECONDS.toNanos(50),
+                TimeUnit.MILLISECONDS.toNanos(300), c -> !((FakeConnection) c).disconnected);
+        wheel.start();
+        wheel.add(stalled);
+        wheel.add(gone);
+        wheel.add(alive);
+
+        // Answers every PING, the way a client with heartbeats does
+        final int[] pings = new int[1];
+        Thread answering = new Thread(() -> {
+            try {
+                Message msg;
+                while ((msg = alive.outbound.take()) != null) {
+                    if ("PING".equals(msg.messageType)) {
+                        pings[0]++;
+                        alive.heard();
+                    }
+                }
+            } catch (InterruptedException e) {
+            }
+        }, "answering");
+        answering.setDaemon(true);
+        answering.start();
+
+        check(eventually(() -> pings[0] > 0), "heartbeat: a quiet client is pinged");
+        check(eventually(() -> wheel.pingsSkipped() > 0) && stalled.queueDepth() == 1,
+                "heartbeat: a full BLOCK queue skips the ping instead of waiting");
+        check(eventually(() -> gone.disconnected), "heartbeat: a stalled client doesn't hold up dropping the dead one");
+        check(eventually(() -> stalled.disconnected), "heartbeat: the stalled client is dropped once it is dead");
+        Thread.sleep(100);
+        check(!alive.disconnected && wheel.evicted() == 2, "heartbeat: a client that keeps answering stays");
+        wheel.stop();
+        alive.disconnect();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Log.setLevel(Log.OFF);
+        clientRegistry();
+        rateLimiter();
+        pendingMessages();
+        sessions();
+        auditLog();
+        heartbeatWheel();
+        System.out.println(failed == 0 ? "All passed" : failed + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,120 @@
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.function.IntConsumer;
+
+/*
+ * Which client ID goes with which session token.
+ *
+ * A client gets its token in the INIT and can present it in the hello the
+ * next time it connects to get the same ID back (and whatever
+ * PendingMessages kept for it). Sessions nobody has come back to for
+ * ttlMillis are forgotten.
+ *
+ * A session also remembers the IDs of the last MESSAGEs its client sent,
+ * so a resend after a lost ACK (even from a new connection) isn't routed
+ * or kept a second time. That is per session, under the session's own
+ * lock; the table itself is only touched on connect and disconnect, so
+ * plain synchronized is fine.
+ */
+class Sessions {
+
+    static final int RECENT = 256; // messageIDs remembered per session for spotting resends
+
+    static class Session {
+        final int ID;
+        final long token;
+        long leftAt = 0; // 0 while connected
+        // The last RECENT messageIDs the server took from this client, made on the first one
+        private long[] recent;
+        private int nextRecent = 0;
+
+        Session(int ID, long token) {
+            this.ID = ID;
+            this.token = token;
+        }
+
+        // True if the server already took the MESSAGE with this ID, i.e. this is a resend
+        synchronized boolean seen(long messageID) {
+            if (recent == null)
+                return false;
+            for (int i = 0; i < RECENT; i++) {
+                if (recent[i] == messageID)
+                    return true;
+            }
+            return false;
+        }
+
+        synchronized void remember(long messageID) {
+            if (recent == null)
+                recent = new long[RECENT];
+            recent[nextRecent] = messageID;
+            nextRecent = (nextRecent + 1) % RECENT;
+        }
+    }
+
+    private final ClientRegistry<?> clients;
+    private final long ttlMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final HashMap<Long, Session> byToken = new HashMap<Long, Session>();
+    private final HashMap<Integer, Session> byID = new HashMap<Integer, Session>();
+    private long lastExpire = System.currentTimeMillis();
+    private IntConsumer onExpire = ID -> {};
+
+    Sessions(ClientRegistry<?> clients, long ttlMillis) {
+        this.clients = clients;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /*
+     * The session for a new connection: the one token belongs to if it is
+     * still around, otherwise a new one with the next free ID.
+     */
+    synchronized Session open(long token) {
+        long now = System.currentTimeMillis();
+        if (now - lastExpire > Math.min(60 * 1000, ttlMillis))
+            expire(now);
+        Session s = token == 0 ? null : byToken.get(token);
+        if (s == null) {
+            long newToken;
+            do {
+                newToken = random.nextLong();
+            } while (newToken == 0 || byToken.containsKey(newToken));
+            s = new Session(clients.nextID(), newToken);
+            byToken.put(s.token, s);
+            byID.put(s.ID, s);
+        }
+        s.leftAt = 0;
+        return s;
+    }
+
+    // ID's connection went away, its session can be resumed until it expires
+    synchronized void left(int ID) {
+        Session s = byID.get(ID);
+        if (s != null)
+            s.leftAt = System.currentTimeMillis();
+    }
+
+    // Called with the ID of each session that expires, to drop whatever else goes with it
+    synchronized void onExpire(IntConsumer listener) {
+        onExpire = listener;
+    }
+
+    synchronized int size() {
+        return byToken.size();
+    }
+
+    private void expire(long now) {
+        lastExpire = now;
+        Iterator<Session> it = byToken.values().iterator();
+        while (it.hasNext()) {
+            Session s = it.next();
+            if (s.leftAt != 0 && s.leftAt < now - ttlMillis) {
+                it.remove();
+                byID.remove(s.ID);
+                onExpire.accept(s.ID);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+
+import java.io.*;
+
+/*
+ * Buttons for a client with no GPIO. Presses come from press() or from a
+ * script: button names (up, down, left, right, select) separated by spaces,
+ * with a number meaning wait that many ms, e.g. "down select 200 left".
+ */
+class SimulatedButtons implements ButtonSource {
+
+  private ButtonInput input;
+
+  public void start(ButtonInput input) {
+    this.input = input;
+  }
+
+  void press(ButtonInput.Event button) {
+    input.press(button);
+  }
+
+  void play(String script) throws InterruptedException {
+    for (String step : script.trim().split("\\s+")) {
+      if (step.isEmpty())
+        continue;
+      if (Character.isDigit(step.charAt(0)))
+        Thread.sleep(Long.parseLong(step));
+      else
+        press(ButtonInput.Event.valueOf(step.toUpperCase()));
+    }
+  }
+
+  // Plays every line of in as a script, on its own thread
+  void playFrom(final InputStream in) {
+    Thread t = new Thread(() -> {
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          try {
+            play(line);
+          } catch (IllegalArgumentException e) {
+            Log.log(Log.WARN, "Unknown button in: {}", line);
+          }
+        }
+      } catch (IOException e) {
+      } catch (InterruptedException e) {
+      }
+    }, "buttons");
+    t.setDaemon(true);
+    t.start();
+  }
+}
@@ -0,0 +1,105 @@
+
+import java.util.Arrays;
+
+/*
+ * An LCD that only exists in memory, for running the client without a Pi.
+ * row()/toString() show what a real display would, and awaitFrame() lets a
+ * test wait for the UI to finish drawing. With echo on every frame is
+ * printed to stdout.
+ */
+class SimulatedLcd implements LcdDisplay {
+
+  private final char[][] cells;
+  private int x = 0;
+  private int y = 0;
+  private boolean cursorOn = false;
+  private long frames = 0;
+  private long writes = 0; // characters plus position commands, like the real bus
+  boolean echo = false;
+
+  SimulatedLcd(int rows, int columns) {
+    cells = new char[rows][columns];
+    clear();
+  }
+
+  public int rows() {
+    return cells.length;
+  }
+
+  public int columns() {
+    return cells[0].length;
+  }
+
+  public synchronized void clear() {
+    for (char[] row : cells)
+      Arrays.fill(row, ' ');
+    x = 0;
+    y = 0;
+  }
+
+  public synchronized void position(int x, int y) {
+    this.x = x;
+    this.y = y;
+    writes++;
+  }
+
+  // Like the HD44780, anything past the end of a row is lost
+  public synchronized void puts(String s) {
+    for (int i = 0; i < s.length(); i++, x++) {
+      if (y >= 0 && y < cells.length && x >= 0 && x < cells[y].length)
+        cells[y][x] = s.charAt(i);
+    }
+    writes += s.length();
+  }
+
+  public synchronized void showCursor(boolean on) {
+    cursorOn = on;
+  }
+
+  public synchronized void frameDone() {
+    frames++;
+    if (echo)
+      System.out.println(this);
+    notifyAll();
+  }
+
+  // What row y says right now
+  synchronized String row(int y) {
+    return new String(cells[y]);
+  }
+
+  synchronized long frames() {
+    return frames;
+  }
+
+  synchronized long writes() {
+    return writes;
+  }
+
+  // Waits until more than seen frames have been drawn, false if that took longer than timeoutMillis
+  synchronized boolean awaitFrame(long seen, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (frames <= seen) {
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0)
+        return false;
+      wait(left);
+    }
+    return true;
+  }
+
+  // The screen in a box, with the cursor shown as _ if it is on
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    char[] border = new char[cells[0].length];
+    Arrays.fill(border, '-');
+    sb.append('+').append(border).append("+\n");
+    for (int row = 0; row < cells.length; row++) {
+      sb.append('|');
+      for (int col = 0; col < cells[row].length; col++)
+        sb.append(cursorOn && row == y && col == x && cells[row][col] == ' ' ? '_' : cells[row][col]);
+      sb.append("|\n");
+    }
+    return sb.append('+').append(border).append('+').toString();
+  }
+}